@@ -0,0 +1,83 @@
+package com.moe365.moepi.processing;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+import com.moe365.moepi.geom.PreciseRectangle;
+
+/**
+ * Checks that processing a frame doesn't allocate anything, once the
+ * processor has warmed up (see {@link ProcessingArena}), so that we don't
+ * slowly go back to GC pauses on the Pi.
+ * <p>
+ * Runs the {@link ImageProcessor} over the {@linkplain FramePairs synthetic frames}
+ * at each resolution, and uses {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)}
+ * to count how much the processing thread allocated. Exits with status 1 if
+ * anything was. Run it with <code>gradle allocationCheck</code>, or pass
+ * resolutions (like <code>640x480</code>) to check just those.
+ * </p>
+ * <p>
+ * Decoding JPEG frames (in V4L4J) still allocates, and isn't checked.
+ * Neither is {@link ContourTracer}, which builds new lists and
+ * {@link com.moe365.moepi.geom.Polygon Polygons} for every frame.
+ * </p>
+ * @author mailmindlin
+ */
+public class AllocationCheck {
+	/**
+	 * Frames to process before measuring, so that everything's been
+	 * allocated, and the JIT has had time to compile the hot paths (escape
+	 * analysis gets rid of some temporary objects, but only once compiled)
+	 */
+	protected static final int WARMUP_FRAMES = 20000;
+	/**
+	 * Frames to measure
+	 */
+	protected static final int MEASURED_FRAMES = 1000;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0)
+			args = new String[] { "320x240", "640x480", "1280x720" };
+
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean) || !((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+			System.err.println("This JVM can't count allocated memory");
+			System.exit(2);
+		}
+		final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		final long thread = Thread.currentThread().getId();
+
+		boolean failed = false;
+		for (String resolution : args) {
+			FramePairs pairs = new FramePairs();
+			pairs.resolution = resolution;
+			pairs.frames = "synthetic";
+			pairs.setup();
+			ImageProcessor processor = new ImageProcessor(pairs.width, pairs.height, 20, 20, ImageProcessor.DEFAULT_MAX_ZEROS_IN_A_ROW, null);
+
+			for (int i = 0; i < WARMUP_FRAMES; i++) {
+				final int pair = pairs.next();
+				processor.apply(pairs.on[pair], pairs.off[pair]);
+			}
+
+			int targets = 0;
+			final long before = allocations.getThreadAllocatedBytes(thread);
+			for (int i = 0; i < MEASURED_FRAMES; i++) {
+				final int pair = pairs.next();
+				List<PreciseRectangle> results = processor.apply(pairs.on[pair], pairs.off[pair]);
+				targets += results.size();
+			}
+			final long allocated = allocations.getThreadAllocatedBytes(thread) - before;
+
+			System.out.println(resolution + ": " + ((double) allocated / MEASURED_FRAMES) + " bytes/frame (" + targets + " targets found)");
+			if (allocated > 0)
+				failed = true;
+		}
+		if (failed) {
+			System.err.println("Processing allocated memory");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.moe365.moepi.processing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.moe365.moepi.geom.PreciseRectangle;
+
+/**
+ * Benchmarks the segmentation algorithms, on precomputed diffs
+ * @author mailmindlin
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BoundingBoxBenchmark {
+	protected ImageProcessor processor;
+	protected PyramidImageProcessor pyramid2, pyramid4;
+	protected ProcessingArena arena;
+	protected final List<PreciseRectangle> rectangles = new ArrayList<>();
+
+	@Setup
+	public void setup(FramePairs pairs) {
+		this.processor = new ImageProcessor(pairs.width, pairs.height, 20, 20, ImageProcessor.DEFAULT_MAX_ZEROS_IN_A_ROW, null);
+		this.pyramid2 = new PyramidImageProcessor(pairs.width, pairs.height, 20, 20, new DiffGenerator(0, 0, pairs.width, pairs.height, ImageProcessor.DEFAULT_TOLERANCE), 2, null);
+		this.pyramid4 = new PyramidImageProcessor(pairs.width, pairs.height, 20, 20, new DiffGenerator(0, 0, pairs.width, pairs.height, ImageProcessor.DEFAULT_TOLERANCE), 4, null);
+		this.arena = new ProcessingArena(pairs.width, pairs.height);
+	}
+
+	/**
+	 * {@link ImageProcessor#boundingBox(BinaryImage, ProcessingArena, int, int, int, int)}
+	 */
+	@Benchmark
+	public List<PreciseRectangle> imageProcessor(FramePairs pairs) {
+		int i = pairs.next();
+		arena.reset();
+		processor.boundingBox(pairs.masks[i], arena, 0, pairs.width - 1, 0, pairs.height - 1);
+		return arena.getResults();
+	}
+
+	/**
+	 * {@link PyramidImageProcessor}, reducing by 2x
+	 */
+	@Benchmark
+	public List<PreciseRectangle> pyramid2(FramePairs pairs) {
+		int i = pairs.next();
+		arena.reset();
+		pyramid2.findRectangles(arena, pairs.masks[i], pairs.width, pairs.height);
+		return arena.getResults();
+	}
+
+	/**
+	 * {@link PyramidImageProcessor}, reducing by 4x
+	 */
+	@Benchmark
+	public List<PreciseRectangle> pyramid4(FramePairs pairs) {
+		int i = pairs.next();
+		arena.reset();
+		pyramid4.findRectangles(arena, pairs.masks[i], pairs.width, pairs.height);
+		return arena.getResults();
+	}
+
+	/**
+	 * {@link BoundingBoxThing#boundingBoxRecursive(boolean[][], List, int, int, int, int, int, int, int, int)}
+	 */
+	@Benchmark
+	public List<PreciseRectangle> boundingBoxThing(FramePairs pairs) {
+		int i = pairs.next();
+		rectangles.clear();
+		BoundingBoxThing.boundingBoxRecursive(pairs.maskArrays[i], rectangles, 0, pairs.width - 1, 0, pairs.height - 1, -1, -1, -1, -1);
+		return rectangles;
+	}
+}
@@ -0,0 +1,35 @@
+package com.moe365.moepi.processing;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.moe365.moepi.geom.Polygon;
+
+/**
+ * Benchmarks {@link ContourTracer#tracePass1(BinaryImage)}, on precomputed diffs
+ * @author mailmindlin
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ContourTracerBenchmark {
+	protected ContourTracer tracer;
+
+	@Setup
+	public void setup(FramePairs pairs) {
+		this.tracer = new ContourTracer(pairs.width, pairs.height);
+	}
+
+	@Benchmark
+	public List<Polygon> tracePass1(FramePairs pairs) {
+		return tracer.tracePass1(pairs.masks[pairs.next()]);
+	}
+}
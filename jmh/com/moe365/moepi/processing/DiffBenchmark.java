@@ -0,0 +1,44 @@
+package com.moe365.moepi.processing;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks {@link DiffGenerator#apply(java.awt.image.BufferedImage, java.awt.image.BufferedImage, MutableBinaryImage)},
+ * into both kinds of mask
+ * @author mailmindlin
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DiffBenchmark {
+	protected DiffGenerator diff;
+	protected BitPackedBinaryImage result;
+	protected RunLengthBinaryImage runLengthResult;
+
+	@Setup
+	public void setup(FramePairs pairs) {
+		this.diff = new DiffGenerator(0, 0, pairs.width, pairs.height, ImageProcessor.DEFAULT_TOLERANCE);
+		this.result = new BitPackedBinaryImage(pairs.width, pairs.height);
+		this.runLengthResult = new RunLengthBinaryImage(pairs.width, pairs.height);
+	}
+
+	@Benchmark
+	public BitPackedBinaryImage diff(FramePairs pairs) {
+		int i = pairs.next();
+		return diff.apply(pairs.on[i], pairs.off[i], result);
+	}
+
+	@Benchmark
+	public RunLengthBinaryImage diffRunLength(FramePairs pairs) {
+		int i = pairs.next();
+		return diff.apply(pairs.on[i], pairs.off[i], runLengthResult);
+	}
+}
@@ -0,0 +1,159 @@
+package com.moe365.moepi.processing;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * On/off frame pairs for benchmarks, and their diffs.
+ * <p>
+ * Frames are either generated (<code>-p frames=synthetic</code>, the
+ * default), or loaded from a directory of recorded frames
+ * (<code>-p frames=/path/to/dir</code>), laid out the same way as for
+ * <code>--test processing</code> (<code>on0.png</code>, <code>off0.png</code>,
+ * <code>on1.png</code>, ...). Recorded frames are scaled to the resolution being
+ * benchmarked.
+ * </p>
+ * <p>
+ * Each invocation of a benchmark should use {@link #next()}, so that we
+ * don't just measure how well the branch predictor can memorize one frame.
+ * </p>
+ * @author mailmindlin
+ */
+@State(Scope.Thread)
+public class FramePairs {
+	/**
+	 * Number of pairs to generate for synthetic frames
+	 */
+	protected static final int NUM_SYNTHETIC = 8;
+
+	@Param({"320x240", "640x480", "1280x720"})
+	public String resolution;
+
+	@Param({"synthetic"})
+	public String frames;
+
+	public int width;
+	public int height;
+	public BufferedImage[] on;
+	public BufferedImage[] off;
+	/**
+	 * Diffs of each pair
+	 */
+	public BitPackedBinaryImage[] masks;
+	/**
+	 * Diffs of each pair, as <code>[y][x]</code> arrays
+	 */
+	public boolean[][][] maskArrays;
+	protected int index = 0;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		int split = resolution.indexOf('x');
+		this.width = Integer.parseInt(resolution.substring(0, split));
+		this.height = Integer.parseInt(resolution.substring(split + 1));
+
+		List<BufferedImage[]> pairs = "synthetic".equals(frames) ? generate() : load(new File(frames));
+		if (pairs.isEmpty())
+			throw new IllegalArgumentException("No frames found in " + frames);
+
+		final int n = pairs.size();
+		this.on = new BufferedImage[n];
+		this.off = new BufferedImage[n];
+		this.masks = new BitPackedBinaryImage[n];
+		this.maskArrays = new boolean[n][][];
+		DiffGenerator diff = new DiffGenerator(0, 0, width, height, ImageProcessor.DEFAULT_TOLERANCE);
+		for (int i = 0; i < n; i++) {
+			on[i] = pairs.get(i)[0];
+			off[i] = pairs.get(i)[1];
+			masks[i] = diff.apply(on[i], off[i]);
+			boolean[][] array = maskArrays[i] = new boolean[height][width];
+			for (int y = 0; y < height; y++)
+				for (int x = 0; x < width; x++)
+					array[y][x] = masks[i].test(x, y);
+		}
+	}
+
+	/**
+	 * @return index of the pair to use for the next invocation
+	 */
+	public int next() {
+		int i = this.index;
+		this.index = (i + 1) % on.length;
+		return i;
+	}
+
+	/**
+	 * Generate pairs of frames with a few dark rectangles (in both frames), a
+	 * few bright green rectangles (targets, only when the flash is on), and some
+	 * green noise.
+	 */
+	protected List<BufferedImage[]> generate() {
+		List<BufferedImage[]> result = new ArrayList<>(NUM_SYNTHETIC);
+		for (int seed = 0; seed < NUM_SYNTHETIC; seed++) {
+			Random r = new Random(seed);
+			BufferedImage on = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+			BufferedImage off = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+			Graphics2D gOn = on.createGraphics(), gOff = off.createGraphics();
+			for (int i = 0; i < 40; i++) {
+				Color color = new Color(r.nextInt(120), r.nextInt(120), r.nextInt(120));
+				int x = r.nextInt(width), y = r.nextInt(height), w = r.nextInt(width / 3) + 1, h = r.nextInt(height / 3) + 1;
+				gOn.setColor(color);
+				gOn.fillRect(x, y, w, h);
+				gOff.setColor(color);
+				gOff.fillRect(x, y, w, h);
+			}
+			gOn.setColor(new Color(30, 230, 60));
+			for (int i = 1 + r.nextInt(6); i > 0; i--)
+				gOn.fillRect(r.nextInt(width - width / 8), r.nextInt(height - height / 6), width / 16 + r.nextInt(width / 6), height / 12 + r.nextInt(height / 6));
+			gOn.dispose();
+			gOff.dispose();
+			for (int i = width * height / 200; i > 0; i--)
+				on.setRGB(r.nextInt(width), r.nextInt(height), 0x20F020);
+			result.add(new BufferedImage[] { on, off });
+		}
+		return result;
+	}
+
+	/**
+	 * Load recorded pairs
+	 */
+	protected List<BufferedImage[]> load(File dir) throws IOException {
+		List<BufferedImage[]> result = new ArrayList<>();
+		for (int i = 0; ; i++) {
+			File onFile = new File(dir, "on" + i + ".png");
+			File offFile = new File(dir, "off" + i + ".png");
+			if (!(onFile.exists() && offFile.exists()))
+				break;
+			result.add(new BufferedImage[] { scale(ImageIO.read(onFile)), scale(ImageIO.read(offFile)) });
+		}
+		return result;
+	}
+
+	/**
+	 * Scale an image to the benchmarked resolution, and convert it to the
+	 * format that V4L4J decodes JPEG frames to.
+	 */
+	protected BufferedImage scale(BufferedImage src) {
+		BufferedImage dst = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+		Graphics2D g = dst.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+		g.drawImage(src, 0, 0, width, height, null);
+		g.dispose();
+		return dst;
+	}
+}
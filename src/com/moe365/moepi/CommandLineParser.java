@@ -168,7 +168,11 @@ public class CommandLineParser implements Serializable, Function<String[], Parse
 			.addKvPair("--height", "px", "Set the height of image to capture/broadcast")
 			.addKvPair("--target-width", "px", "Minimum target width for a blob to be processed.")
 			.addKvPair("--target-height", "px", "Minimum target height for a blob to be processed.")
+			.addFlag("--capture-raw", "Capture raw YUYV frames, and diff them without converting them to JPEG. Frames are only JPEG encoded when streamed to MOE.js. Falls back to JPEG if the camera doesn't support YUYV.")
+			.addFlag("--capture-rgb", "Capture RGB24 frames, and diff them straight from the capture buffers (only reading red and green). Frames are only JPEG encoded when streamed to MOE.js. Ignored if --capture-raw is set.")
 			.addKvPair("--jpeg-quality", "quality", "Set the JPEG quality to request. Must be 1-100")
+			.addKvPair("--preview-scales", "scales", "Comma-separated factors to scale down extra MOE.js video streams by (e.g. 2,4), for dashboards that show them small. Each is only generated while someone is watching it, and gets its own thread, which may use up to a quarter of a core. With JPEG capture, frames have to be decoded and re-encoded, which is slow on a Pi. Default none.")
+			.addKvPair("--preview-quality", "quality", "JPEG quality of the scaled down video streams, 1-100. Default 50.")
 			.addKvPair("--fps-num", "numerator", "Set the FPS numerator. If the camera does not support the set framerate, the closest one available is chosen.")
 			.addKvPair("--fps-denom", "denom", "Set the FPS denominator. If the camera does not support the set framerate, the closest one available is chosen.")
 			.addKvPair("--brightness", "number", "Set the brightness of the camera (30-255).")
@@ -189,14 +193,24 @@ public class CommandLineParser implements Serializable, Function<String[], Parse
 			.addKvPair("--y-skip", "px", "Number of pixels to skip on the y axis when processing sweep 1 (not implemented)")
 			.addFlag("--save-diff", "Save the diff image to a file (./img/delta[#].png). Requires processor.")
 			.addKvPair("--save-dir", "directory", "Directory to save diff images when running with the --save-diff flag or --test processing.")
+			.addKvPair("--diff-bands", "number", "Split the diff into this many horizontal bands, and process them in parallel. Default 1 (no parallelism). Ignored with --save-diff, --capture-raw and --capture-rgb.")
+			.addFlag("--pipeline", "Run the decode, diff, segmentation and publish stages of the image processor on separate threads, so frames can overlap.")
+			.addFlag("--label-components", "Find targets by labeling connected components, instead of by recursively splitting the diff. Its cost doesn't grow in cluttered scenes, and it also finds the pixel count, centroid and fill ratio of each target. Ignored with --pipeline.")
+			.addFlag("--track", "Once targets are found, only diff and search the regions around where they're expected to be in the next frame. Works best with --capture-raw or --capture-rgb. Ignored with --pipeline, --save-diff and --test.")
+			.addKvPair("--track-rescan", "frames", "Number of frames between full scans when running with --track. Default 30.")
+			.addFlag("--smooth-targets", "Follow targets across frames, and send Kalman-filtered bounds, in a stable order, instead of each frame's raw measurements. A target has to be seen in 2 frames to be sent, and is sent for up to 3 frames after it's lost.")
 			.addFlag("--trace-contours", "Enable the (dev) contour tracing algorithm (not complete)")
 			// Client options
-			.addKvPair("--udp-target", "address", "Specify the address to broadcast UDP packets to.")
+			.addKvPair("--udp-target", "address", "Specify the address to broadcast UDP packets to. Multiple comma-separated addresses (each optionally with :port) may be given, to send to e.g. the RIO and a dashboard at once.")
 			.alias("--rio-addr", "--udp-target")
 			.addKvPair("--udp-port", "port", "Specify the port to send UDP packets to. Default 5810; a negative port number is equivalent to --no-udp.")
 			.alias("--rio-port", "--udp-port")
+			.addFlag("--udp-float", "Send target coordinates as 32-bit floats, which fits twice as many targets in a packet. Packets use the TARGETS status code, which old RIO code doesn't know.")
+			.addKvPair("--udp-max-length", "bytes", "Longest target payload to send, in bytes. Targets past what fits are dropped. Default 192 (for a 198-byte packet), which fits 6 targets as doubles, or 11 as floats. With --udp-timestamps, the timestamps come out of this, leaving 178 bytes (5 targets as doubles, or 10 as floats).")
+			.addFlag("--udp-compact", "Offer to send target coordinates as 16-bit fixed point, with a confidence byte per target, which fits 20 targets in a packet. With --smooth-targets, each target's track ID is sent too (17 targets per packet). Only used once the RIO sends a hello packet saying that it supports them.")
+			.addFlag("--udp-timestamps", "Wrap target packets with when their frames were captured and how long processing took, and answer clock sync requests from the RIO, so it can match targets to the robot's position at capture time.")
 			.addFlag("--port-override", "Overrides port range constraint for the UDP client.")
-			.addKvPair("--mdns-resolve-retry", "time", "Set the interval to retry to resolve the Rio's address.")
+			.addKvPair("--mdns-resolve-retry", "time", "Set the interval to retry to resolve the Rio's address, in milliseconds. With multiple --udp-target addresses, they are re-resolved this often.")
 			.alias("--rio-resolve-retry", "--mdns-resolve-retry")
 			// Disabling stuff options
 			.addFlag("--no-process", "Disable image processing.")
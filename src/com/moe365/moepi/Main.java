@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
@@ -23,11 +24,25 @@ import com.moe365.moepi.geom.PreciseRectangle;
 import com.moe365.moepi.geom.Polygon.PointNode;
 import com.moe365.moepi.net.MPHttpServer;
 import com.moe365.moepi.processing.AbstractImageProcessor;
+import com.moe365.moepi.processing.ConnectedComponentProcessor;
 import com.moe365.moepi.processing.ContourTracer;
 import com.moe365.moepi.processing.ImageProcessor;
 import com.moe365.moepi.processing.DebuggingDiffGenerator;
+import com.moe365.moepi.processing.DiffGenerator;
+import com.moe365.moepi.processing.ParallelDiffGenerator;
+import com.moe365.moepi.processing.PipelinedImageProcessor;
+import com.moe365.moepi.processing.RGB24DiffGenerator;
+import com.moe365.moepi.processing.TargetTracker;
+import com.moe365.moepi.processing.TimedResultConsumer;
+import com.moe365.moepi.processing.TrackingImageProcessor;
+import com.moe365.moepi.processing.YUYVDiffGenerator;
+import com.moe365.moepi.client.MultiRioClient;
 import com.moe365.moepi.client.RioClient;
 import com.moe365.moepi.client.StaticRioClient;
+import com.moe365.moepi.client.packets.HelloRioPacket;
+import com.moe365.moepi.client.packets.RioPacket;
+import com.moe365.moepi.client.packets.TargetsRioPacket;
+import com.moe365.moepi.client.packets.TimestampedRioPacket;
 
 import com.pi4j.io.gpio.GpioController;
 import com.pi4j.io.gpio.GpioFactory;
@@ -40,12 +55,13 @@ import com.pi4j.io.gpio.RaspiPin;
 import au.edu.jcu.v4l4j.CaptureCallback;
 import au.edu.jcu.v4l4j.Control;
 import au.edu.jcu.v4l4j.ControlList;
+import au.edu.jcu.v4l4j.FrameGrabber;
 import au.edu.jcu.v4l4j.ImageFormat;
 import au.edu.jcu.v4l4j.ImagePalette;
-import au.edu.jcu.v4l4j.JPEGFrameGrabber;
 import au.edu.jcu.v4l4j.V4L4JConstants;
 import au.edu.jcu.v4l4j.VideoDevice;
 import au.edu.jcu.v4l4j.VideoFrame;
+import au.edu.jcu.v4l4j.encoder.JPEGEncoder;
 import au.edu.jcu.v4l4j.exceptions.ControlException;
 import au.edu.jcu.v4l4j.exceptions.StateException;
 import au.edu.jcu.v4l4j.exceptions.UnsupportedMethod;
@@ -121,7 +137,8 @@ public class Main {
 			final VideoDevice camera = initCamera(parsed);
 			final GpioPinDigitalOutput gpioPin = initGpio(parsed);
 			final RioClient rioClient = initRoboRioClient(parsed, executor);
-			final AbstractImageProcessor<?> processor = initImageProcessor(parsed, rioClient, server);
+			final ImagePalette capturePalette = initCapturePalette(parsed, camera);
+			final AbstractImageProcessor<?> processor = initImageProcessor(parsed, rioClient, server, capturePalette);
 
       		// Run test, if required
       		if (parsed.isFlagSet("--test")) {
@@ -157,15 +174,45 @@ public class Main {
 			if(camera != null) {
 				System.out.println("Initializing frame capture callback...");
 
-				// Get native capture format (format that the camera actually provides)
-				// Whatever format is captured will be software converted to JPEG
-				final ImageFormat imf = camera.getDeviceInfo().getFormatList().getNativeFormatOfType(ImagePalette.MJPEG);
-				System.out.println("Capturing with format " + imf);
-
 				final int jpegQuality = parsed.getOrDefault("--jpeg-quality", 100);
 				final int width = parsed.getOrDefault("--width", DEFAULT_WIDTH);
 				final int height = parsed.getOrDefault("--height", DEFAULT_HEIGHT);
-				final JPEGFrameGrabber frameGrabber = camera.getJPEGFrameGrabber(width, height, 0, V4L4JConstants.STANDARD_WEBCAM, jpegQuality, imf);
+				final FrameGrabber frameGrabber;
+				if (capturePalette == ImagePalette.YUYV) {
+					final ImageFormat rawFormat = camera.getDeviceInfo().getFormatList().getNativeFormatOfType(ImagePalette.YUYV);
+					System.out.println("Capturing raw frames with format " + rawFormat);
+					frameGrabber = camera.getRawFrameGrabber(width, height, 0, V4L4JConstants.STANDARD_WEBCAM, rawFormat);
+				} else if (capturePalette == ImagePalette.RGB24) {
+					System.out.println("Capturing RGB24 frames");
+					frameGrabber = camera.getRGBFrameGrabber(width, height, 0, V4L4JConstants.STANDARD_WEBCAM);
+				} else {
+					// Get native capture format (format that the camera actually provides)
+					// Whatever format is captured will be software converted to JPEG
+					final ImageFormat imf = camera.getDeviceInfo().getFormatList().getNativeFormatOfType(ImagePalette.MJPEG);
+					System.out.println("Capturing with format " + imf);
+					frameGrabber = camera.getJPEGFrameGrabber(width, height, 0, V4L4JConstants.STANDARD_WEBCAM, jpegQuality, imf);
+				}
+				if (capturePalette != null && server != null) {
+					// Frames are processed as-is, and only encoded to JPEG when they're streamed
+					JPEGEncoder encoder = JPEGEncoder.from(width, height, capturePalette);
+					encoder.setQuality(jpegQuality);
+					server.setFrameEncoder(encoder);
+				}
+				if (server != null) {
+					final int previewQuality = parsed.getOrDefault("--preview-quality", 50);
+					for (String scale : parsed.getOrDefault("--preview-scales", "none").split(",")) {
+						scale = scale.trim();
+						if (scale.isEmpty() || scale.equals("none"))
+							continue;
+						try {
+							server.addScaledVideoChannel(Integer.parseInt(scale), previewQuality, capturePalette);
+							System.out.println("Streaming 1/" + scale + " scale preview");
+						} catch (IllegalArgumentException e) {
+							// Not worth failing to start over
+							System.err.println("Not streaming preview '" + scale + "': " + e.getMessage());
+						}
+					}
+				}
 
 				final int fpsNum = parsed.getOrDefault("--fps-num", 1);
 				final int fpsDenom = parsed.getOrDefault("--fps-denom", 10);
@@ -183,10 +230,7 @@ public class Main {
 							boolean gpioState;
 							//Drop frames taken before the LED had time to flash
 							if (gpioPin != null) {
-								long frameTimestamp = frame.getCaptureTime();
-								if (frameTimestamp < 0) {
-									frameTimestamp = Integer.toUnsignedLong((int) frameTimestamp);
-								}
+								final long frameTimestamp = AbstractImageProcessor.getCaptureTime(frame);
 								final long newTimestamp = (System.nanoTime() / 1000) + gpioDelay; // in microseconds
 
 								if (ledUpdateTimestamp.accumulateAndGet(frameTimestamp, (threshold, _frameTimestmp)->(_frameTimestmp >= threshold ? newTimestamp : threshold)) != newTimestamp) {
@@ -251,6 +295,27 @@ public class Main {
 		}
   	}
 
+  	/**
+  	 * Find the format to capture frames in, if it's not JPEG.
+  	 * @return YUYV if raw capture is enabled (and supported by the camera),
+  	 *         RGB24 if RGB capture is enabled, or null if frames should be
+  	 *         captured as JPEG
+  	 */
+  	private static ImagePalette initCapturePalette(final ParsedCommandLineArguments args, final VideoDevice camera) throws V4L4JException {
+		if (camera == null)
+			return null;
+		if (args.isFlagSet("--capture-raw")) {
+			if (camera.getDeviceInfo().getFormatList().getNativeFormatOfType(ImagePalette.YUYV) != null)
+				return ImagePalette.YUYV;
+			System.out.println("--capture-raw flag set, but the camera doesn't support YUYV. Capturing JPEG instead.");
+		} else if (args.isFlagSet("--capture-rgb")) {
+			if (camera.supportRGBConversion())
+				return ImagePalette.RGB24;
+			System.out.println("--capture-rgb flag set, but the camera can't capture RGB24. Capturing JPEG instead.");
+		}
+		return null;
+	}
+
   	private static GpioPinDigitalOutput initGpio(final ParsedCommandLineArguments args) {
 		if (args.isFlagSet("--no-gpio")) {
 			System.out.println("GPIO DISABLED");
@@ -368,7 +433,7 @@ public class Main {
 		}
 		
 		final int port = args.getOrDefault("--udp-port", RioClient.RIO_PORT);
-		//int retryTime = args.getOrDefault("--mdns-resolve-retry", RioClient.RESOLVE_RETRY_TIME);
+		final int retryTime = args.getOrDefault("--mdns-resolve-retry", RioClient.RESOLVE_RETRY_TIME);
 		if (port <= 0) {
 			System.out.println("CLIENT DISABLED (reason: negative port number)");
 			return null;
@@ -381,7 +446,46 @@ public class Main {
 
 		final String address = args.getOrDefault("--udp-target", RioClient.RIO_ADDRESS);
 
-		return new StaticRioClient(RioClient.SERVER_PORT, new InetSocketAddress(address, port));
+		int capabilities = 0;
+		if (args.isFlagSet("--udp-timestamps")) {
+			System.out.println("--udp-timestamps flag set: Sending capture times, and answering clock sync requests");
+			capabilities |= HelloRioPacket.CAPABILITY_TIMESTAMPS | HelloRioPacket.CAPABILITY_TIME_SYNC;
+		}
+		if (args.isFlagSet("--udp-compact")) {
+			System.out.println("--udp-compact flag set: Sending 16-bit fixed point targets once the RIO supports them");
+			capabilities |= HelloRioPacket.CAPABILITY_FIXED16 | HelloRioPacket.CAPABILITY_CONFIDENCE;
+			// Only tracked targets have IDs
+			if (args.isFlagSet("--smooth-targets"))
+				capabilities |= HelloRioPacket.CAPABILITY_TRACK_ID;
+		}
+		if (address.indexOf(',') >= 0) {
+			final List<MultiRioClient.Destination> destinations = new ArrayList<>();
+			for (String spec : address.split(",")) {
+				final MultiRioClient.Destination destination;
+				try {
+					destination = MultiRioClient.Destination.parse(spec, port);
+				} catch (IllegalArgumentException e) {
+					System.out.println("CLIENT DISABLED (reason: " + e.getMessage() + ")");
+					return null;
+				}
+				if ((destination.getPort() < 5800 || destination.getPort() > 5810) && !args.isFlagSet("--port-override")) {
+					System.out.println("CLIENT DISABLED (reason: port number of " + destination.getHost() + " violates the rules, must be 5800-5810 or use --port-override)");
+					return null;
+				}
+				destinations.add(destination);
+			}
+			MultiRioClient client = new MultiRioClient(RioClient.SERVER_PORT, destinations, retryTime, capabilities);
+			if (capabilities != 0)
+				client.startListening(executor);
+			return client;
+		}
+		
+		if (capabilities == 0)
+			return new StaticRioClient(RioClient.SERVER_PORT, new InetSocketAddress(address, port));
+		
+		StaticRioClient client = new StaticRioClient(RioClient.SERVER_PORT, new InetSocketAddress(address, port), capabilities);
+		client.startListening(executor);
+		return client;
 	}
 
   	/**
@@ -418,7 +522,7 @@ public class Main {
 		return server;
 	}
 
-  	private static AbstractImageProcessor<?> initImageProcessor(final ParsedCommandLineArguments args, final RioClient rioClient, final MPHttpServer server) {
+  	private static AbstractImageProcessor<?> initImageProcessor(final ParsedCommandLineArguments args, final RioClient rioClient, final MPHttpServer server, final ImagePalette capturePalette) {
 		if (args.isFlagSet("--no-process")) {
 			System.out.println("PROCESSOR DISABLED");
 			return null;
@@ -459,7 +563,42 @@ public class Main {
 
 			final boolean verbose = args.isFlagSet("--verbose");
 
-			processor = new ImageProcessor(width, height, targetWidth, targetHeight, saveDiff, saveDir, rectangles -> {
+			final int diffBands = args.getOrDefault("--diff-bands", 1);
+			final DiffGenerator diff;
+			if (capturePalette == ImagePalette.YUYV) {
+				System.out.println("Diffing raw YUYV frames");
+				diff = new YUYVDiffGenerator(0, 0, width, height, ImageProcessor.DEFAULT_TOLERANCE, width);
+			} else if (capturePalette == ImagePalette.RGB24) {
+				System.out.println("Diffing RGB24 frames");
+				diff = new RGB24DiffGenerator(0, 0, width, height, ImageProcessor.DEFAULT_TOLERANCE, width, capturePalette);
+			} else if (diffBands > 1 && !saveDiff) {
+				System.out.println("Diffing in " + diffBands + " bands");
+				diff = new ParallelDiffGenerator(0, 0, width, height, ImageProcessor.DEFAULT_TOLERANCE, diffBands);
+			} else {
+				diff = ImageProcessor.createDiff(width, height, saveDiff, saveDir);
+			}
+
+			final TargetTracker tracker;
+			if (args.isFlagSet("--smooth-targets")) {
+				System.out.println("--smooth-targets flag set: Filtering targets across frames");
+				tracker = new TargetTracker();
+			} else {
+				tracker = null;
+			}
+
+			final boolean timestamps = args.isFlagSet("--udp-timestamps");
+			final TargetsRioPacket.Encoding encoding = args.isFlagSet("--udp-float") ? TargetsRioPacket.Encoding.FLOAT : TargetsRioPacket.Encoding.DOUBLE;
+			final boolean compact = args.isFlagSet("--udp-compact");
+			int maxLength = args.getOrDefault("--udp-max-length", TargetsRioPacket.DEFAULT_MAX_LENGTH);
+			if (timestamps)
+				// Leave room for the timestamps, so the whole packet still fits in what the RIO reads
+				maxLength -= TimestampedRioPacket.OVERHEAD;
+			// Reused for every frame
+			final TargetsRioPacket targetsPacket = new TargetsRioPacket(null, encoding, maxLength);
+			final TimestampedRioPacket timestampedPacket = new TimestampedRioPacket(targetsPacket, -1, 0);
+
+			final TimedResultConsumer<List<PreciseRectangle>> handler = (measured, captureTime, latency) -> {
+				final List<PreciseRectangle> rectangles = tracker == null ? measured : tracker.update(measured, captureTime < 0 ? System.nanoTime() : captureTime * 1000);
 				try {
 					if(verbose) {
 						String strToPrint = 
@@ -485,50 +624,18 @@ public class Main {
 					}
 
 					if (rioClient != null) {
-						final int numTargets = rectangles.size();
-						if(numTargets <= 0) {
-							rioClient.writeNoneFound();
-						}
-						else if(numTargets == 1) {
-							rioClient.writeOneFound(rectangles.get(0));
-						}
-						else if(numTargets == 2) {
-							rioClient.writeTwoFound(rectangles.get(0), rectangles.get(1));
-						}
-						else if(numTargets == 3) {
-							rioClient.writeThreeFound(
-								rectangles.get(0), 
-								rectangles.get(1),
-								rectangles.get(2)
-							);
-						}
-						else if(numTargets == 4) {
-							rioClient.writeFourFound(
-								rectangles.get(0), 
-								rectangles.get(1),
-								rectangles.get(2),
-								rectangles.get(3)
-							);
-						}
-						else if(numTargets == 5) {
-							rioClient.writeFiveFound(
-								rectangles.get(0), 
-								rectangles.get(1),
-								rectangles.get(2),
-								rectangles.get(3),
-								rectangles.get(4)
-							);
-						}
-						else {
-							rioClient.writeSixFound(
-								rectangles.get(0), 
-								rectangles.get(1),
-								rectangles.get(2),
-								rectangles.get(3),
-								rectangles.get(4),
-								rectangles.get(5)
-							);
+						if (compact) {
+							// Only use what the RIO has said it can read
+							final int peerCapabilities = rioClient.getPeerCapabilities();
+							targetsPacket.setEncoding(
+									(peerCapabilities & HelloRioPacket.CAPABILITY_FIXED16) != 0 ? TargetsRioPacket.Encoding.FIXED16 : encoding,
+									(peerCapabilities & HelloRioPacket.CAPABILITY_CONFIDENCE) != 0,
+									tracker != null && (peerCapabilities & HelloRioPacket.CAPABILITY_TRACK_ID) != 0);
 						}
+						RioPacket packet = targetsPacket.setTargets(rectangles);
+						if (timestamps && captureTime >= 0)
+							packet = timestampedPacket.set(packet, captureTime, System.nanoTime() / 1000 - captureTime);
+						rioClient.broadcast(packet);
 					}
 				} catch (IOException | NullPointerException ex) {
 					ex.printStackTrace();
@@ -538,7 +645,24 @@ public class Main {
 				if (server != null && !gpioDisabled) {
 					server.offerRectangles(rectangles);
 				}
-			});
+			};
+
+			// Regions are diffed on their own, which the debugging diff generator can't save
+			if (args.isFlagSet("--track") && saveDiff && !args.isFlagSet("--pipeline"))
+				System.out.println("--track flag ignored: Can't save diff images while tracking");
+			if (args.isFlagSet("--pipeline")) {
+				System.out.println("--pipeline flag set: Using pipelined processor");
+				processor = new PipelinedImageProcessor(width, height, targetWidth, targetHeight, diff, handler);
+			} else if (args.isFlagSet("--track") && !saveDiff) {
+				final int rescanInterval = args.getOrDefault("--track-rescan", TrackingImageProcessor.DEFAULT_RESCAN_INTERVAL);
+				System.out.println("--track flag set: Using tracking processor (full scan every " + rescanInterval + " frames)");
+				processor = new TrackingImageProcessor(width, height, targetWidth, targetHeight, diff, rescanInterval, handler);
+			} else if (args.isFlagSet("--label-components")) {
+				System.out.println("--label-components flag set: Using connected component labeling");
+				processor = new ConnectedComponentProcessor(width, height, targetWidth, targetHeight, diff, handler);
+			} else {
+				processor = new ImageProcessor(width, height, targetWidth, targetHeight, diff, handler);
+			}
 		}
 
 		return processor.start();
@@ -610,34 +734,15 @@ public class Main {
 		PreciseRectangle r5 = new PreciseRectangle(17.0, 18.0, 19.0, 20.0);
 		PreciseRectangle r6 = new PreciseRectangle(21.0, 22.0, 23.0, 24.0);
 
+		final List<PreciseRectangle> targets = Arrays.asList(r1, r2, r3, r4, r5, r6);
+
 		// just spews out UDP packets
 		while (true) {
-			System.out.println("Writing none found");
-			client.writeNoneFound();
-			Thread.sleep(1000);
-
-			System.out.println("Wrinting one found");
-			client.writeOneFound(r1);
-			Thread.sleep(1000);
-
-			System.out.println("Writing two found");
-			client.writeTwoFound(r1, r2);
-			Thread.sleep(1000);
-
-			System.out.println("Writing three found");
-			client.writeThreeFound(r1, r2, r3);
-			Thread.sleep(1000);
-			System.out.println("Wrinting four found");
-			client.writeFourFound(r1, r2, r3, r4);
-			Thread.sleep(1000);
-
-			System.out.println("Writing five found");
-			client.writeFiveFound(r1, r2, r3, r4, r5);
-			Thread.sleep(1000);
-
-			System.out.println("Writing six found");
-			client.writeSixFound(r1, r2, r3, r4, r5, r6);
-			Thread.sleep(1000);
+			for (int i = 0; i <= targets.size(); i++) {
+				System.out.println("Writing " + i + " found");
+				client.writeTargets(targets.subList(0, i));
+				Thread.sleep(1000);
+			}
 		}
   	}
   
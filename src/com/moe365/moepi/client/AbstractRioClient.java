@@ -2,35 +2,177 @@ package com.moe365.moepi.client;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.moe365.moepi.client.packets.RioPacket;
+import com.moe365.moepi.metrics.Counter;
+import com.moe365.moepi.metrics.Histogram;
+import com.moe365.moepi.metrics.MetricsRegistry;
+import com.moe365.moepi.util.LatestWinsRingBuffer;
 
+/**
+ * Base for clients that send packets from a background thread.
+ * <p>
+ * {@link #broadcast(RioPacket)} writes the packet into one of a fixed set of
+ * direct buffers, and queues it for a sender thread, so the thread calling it
+ * never waits on the network. If the sender falls behind, the oldest queued
+ * packets are dropped, because the RIO only cares about the newest ones
+ * anyways. Neither broadcasting nor sending allocate, unless a packet doesn't
+ * fit in a buffer, in which case that buffer is replaced with a bigger one.
+ * </p>
+ * @author mailmindlin
+ */
 public abstract class AbstractRioClient implements RioClient {
-	
+	protected static final Histogram SEND_TIME = MetricsRegistry.getDefault().histogram("moepi_udp_send_seconds", "Time to send a packet to the RIO");
+	protected static final Counter PACKETS_DROPPED = MetricsRegistry.getDefault().counter("moepi_udp_dropped_total", "Packets dropped because the sender fell behind");
+
+	/**
+	 * Default number of packets that can wait to be sent
+	 */
+	public static final int DEFAULT_QUEUE_DEPTH = 4;
+
 	/**
 	 * Packet number. This number is to allow the client to ignore packets that
 	 * are received out of order. Always increasing.
+	 * <p>
+	 * Only advanced by the sender thread, right before it sends a packet, so
+	 * that packets go out in the order they're numbered. Packets that are
+	 * sent right away from other threads (like clock sync replies) are given
+	 * the number of the last packet sent, so they never look newer than one
+	 * that's still queued.
+	 * </p>
+	 */
+	protected final AtomicInteger packetNum = new AtomicInteger(0);
+
+	/**
+	 * Size of the packet header (sequence number and status)
+	 */
+	public static final int HEADER_SIZE = Integer.BYTES + Short.BYTES;
+
+	/**
+	 * Packets waiting to be sent
+	 */
+	protected final LatestWinsRingBuffer<ByteBuffer> queue;
+	/**
+	 * Buffers that the sender is done with
+	 */
+	protected final LatestWinsRingBuffer<ByteBuffer> freeBuffers;
+	/**
+	 * Buffer that was evicted from the queue, to be reused before taking one
+	 * from {@link #freeBuffers}. Only touched by the broadcasting thread.
+	 */
+	protected ByteBuffer spare;
+
+	protected final Thread senderThread;
+
+	protected AbstractRioClient() {
+		this(DEFAULT_QUEUE_DEPTH);
+	}
+
+	/**
+	 * @param depth
+	 *            number of packets that can wait to be sent. Rounded up to a
+	 *            power of 2.
 	 */
-	protected AtomicInteger packetNum = new AtomicInteger(0);
-	
+	protected AbstractRioClient(int depth) {
+		this.queue = new LatestWinsRingBuffer<>(depth);
+		// Enough buffers that the queue can be full while one is being sent, and one written
+		final int numBuffers = queue.capacity() + 2;
+		this.freeBuffers = new LatestWinsRingBuffer<>(numBuffers);
+		for (int i = 0; i < numBuffers; i++)
+			this.freeBuffers.offer(ByteBuffer.allocateDirect(RioClient.BUFFER_SIZE));
+
+		this.senderThread = new Thread(this::runSender);
+		this.senderThread.setName("RioClient-sender");
+		this.senderThread.setDaemon(true);
+	}
+
 	/**
-	 * Buffer backing packets.
-	 * TODO fix multithreading issues
+	 * {@inheritDoc}
+	 * <p>
+	 * The packet is written before this method returns, so it can be changed
+	 * and broadcast again right away, but it's sent later, on another thread.
+	 * Errors while sending are logged, not thrown. May only be called from one
+	 * thread at a time.
+	 * </p>
 	 */
-	protected final ByteBuffer buffer = ByteBuffer.allocate(RioClient.BUFFER_SIZE);
-	
 	@Override
 	public void broadcast(RioPacket packet) throws IOException {
-		synchronized (buffer) {
-			buffer.clear();
-			buffer.putInt(packetNum.incrementAndGet());
-			buffer.putShort((short)packet.getStatus());
-			packet.writeTo(buffer);
-			buffer.flip();
-			send(buffer);
+		// Started on the first packet, so that subclasses can finish setting up first
+		if (senderThread.getState() == Thread.State.NEW)
+			senderThread.start();
+
+		ByteBuffer buffer = this.spare;
+		this.spare = null;
+		if (buffer == null && (buffer = freeBuffers.poll()) == null) {
+			// Shouldn't happen, but dropping the packet is better than waiting for a buffer
+			PACKETS_DROPPED.inc();
+			return;
+		}
+		buffer = write(packet, buffer);
+		ByteBuffer evicted = queue.offer(buffer);
+		if (evicted != null) {
+			PACKETS_DROPPED.inc();
+			this.spare = evicted;
+		}
+	}
+
+	/**
+	 * Write a packet, with its header, to a buffer, ready to be sent. It's
+	 * given the number of the last packet sent; the sender thread gives
+	 * queued packets their own number when it sends them.
+	 * @param packet packet to write
+	 * @param buffer buffer to write to
+	 * @return the buffer written to, which is a new one if the packet
+	 *         didn't fit in the given buffer
+	 */
+	protected ByteBuffer write(RioPacket packet, ByteBuffer buffer) {
+		final int length = HEADER_SIZE + packet.getLength();
+		if (length > buffer.capacity())
+			buffer = ByteBuffer.allocateDirect(length);
+		buffer.clear();
+		buffer.putInt(packetNum.get());
+		buffer.putShort((short)packet.getStatus());
+		packet.writeTo(buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	protected void runSender() {
+		try {
+			while (!Thread.interrupted()) {
+				final ByteBuffer buffer = queue.take();
+				buffer.putInt(0, packetNum.incrementAndGet());
+				try {
+					final long start = System.nanoTime();
+					send(buffer);
+					SEND_TIME.recordSince(start);
+				} catch (ClosedChannelException e) {
+					break;
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					freeBuffers.offer(buffer);
+				}
+			}
+		} catch (InterruptedException e) {
+			// Closed
 		}
 	}
-	
+
+	/**
+	 * Send a packet. Called from the sender thread, and may also be called
+	 * from subclasses' own threads, so it must be thread safe.
+	 * @param buffer packet, with its header
+	 */
 	protected abstract void send(ByteBuffer buffer) throws IOException;
-}
\ No newline at end of file
+
+	/**
+	 * Stop the sender thread. Packets that haven't been sent yet are dropped.
+	 */
+	@Override
+	public void close() throws IOException {
+		this.senderThread.interrupt();
+	}
+}
@@ -0,0 +1,328 @@
+package com.moe365.moepi.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import com.moe365.moepi.client.packets.HelloRioPacket;
+import com.moe365.moepi.client.packets.RioPacket;
+import com.moe365.moepi.client.packets.TimeSyncRioPacket;
+import com.moe365.moepi.metrics.Counter;
+import com.moe365.moepi.metrics.MetricsRegistry;
+
+/**
+ * A client that sends the same packets to several destinations (for
+ * example, the RIO, a dashboard on the driver station, and a laptop logging
+ * everything), from one non-blocking socket.
+ * <p>
+ * Each packet is written once, and the same buffer is sent to every
+ * destination. A destination that fails to send is skipped for a while,
+ * doubling each time it fails again, so one that's unplugged doesn't spam
+ * errors or slow down the rest. Hostnames (like the RIO's mDNS name) are
+ * resolved, and re-resolved every so often in case they move, on a
+ * background thread, so sending never waits on a lookup. Destinations are
+ * sent a hello packet every time they resolve to a new address.
+ * </p>
+ * @author mailmindlin
+ */
+public class MultiRioClient extends AbstractRioClient {
+	protected static final Counter SEND_ERRORS = MetricsRegistry.getDefault().counter("moepi_udp_send_errors_total", "Packets that couldn't be sent to a destination");
+	protected static final Counter SEND_SKIPPED = MetricsRegistry.getDefault().counter("moepi_udp_send_skipped_total", "Packets not sent to a destination because it was unresolved, backing off, or the socket was full");
+	/**
+	 * Time to skip a destination for after its first error, in nanoseconds
+	 */
+	public static final long MIN_BACKOFF = 100_000_000L;
+	/**
+	 * Longest time to skip a destination for, in nanoseconds
+	 */
+	public static final long MAX_BACKOFF = 5_000_000_000L;
+
+	/**
+	 * A place to send packets
+	 */
+	public static class Destination {
+		protected final String host;
+		protected final int port;
+		/**
+		 * Address that the host last resolved to, or null if it hasn't yet
+		 */
+		protected volatile InetSocketAddress address;
+		/**
+		 * Capabilities from the last hello packet that this destination sent
+		 */
+		protected volatile int capabilities = 0;
+		/**
+		 * Number of sends that have failed in a row. Only touched by the
+		 * sender thread.
+		 */
+		protected int errors = 0;
+		/**
+		 * When to try sending to this destination again, if it's backing off.
+		 * Only touched by the sender thread.
+		 */
+		protected long retryTime;
+
+		public Destination(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+
+		/**
+		 * Parse a destination from a string like {@code host}, {@code host:port},
+		 * or {@code [ipv6]:port}
+		 * @param spec string to parse
+		 * @param defaultPort port to use if none is given
+		 * @throws IllegalArgumentException if the host is empty, or the port
+		 *             isn't a number from 1 to 65535
+		 */
+		public static Destination parse(String spec, int defaultPort) {
+			final String original = spec;
+			spec = spec.trim();
+			int port = defaultPort;
+			final int colon = spec.lastIndexOf(':');
+			// IPv6 addresses only have a port if they're in brackets
+			if (colon >= 0 && (spec.indexOf(':') == colon || (colon > 0 && spec.charAt(colon - 1) == ']'))) {
+				try {
+					port = Integer.parseInt(spec.substring(colon + 1).trim());
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Invalid port in UDP target '" + original + "'");
+				}
+				spec = spec.substring(0, colon).trim();
+			}
+			if (spec.startsWith("[") && spec.endsWith("]"))
+				spec = spec.substring(1, spec.length() - 1);
+			if (spec.isEmpty())
+				throw new IllegalArgumentException("No host in UDP target '" + original + "'");
+			if (port < 1 || port > 0xFFFF)
+				throw new IllegalArgumentException("Invalid port in UDP target '" + original + "' (expect: 1-65535; port = " + port + ")");
+			return new Destination(spec, port);
+		}
+
+		public String getHost() {
+			return this.host;
+		}
+
+		public int getPort() {
+			return this.port;
+		}
+
+		/**
+		 * @return the address that the host last resolved to, or null if it
+		 *         hasn't resolved yet
+		 */
+		public InetSocketAddress getAddress() {
+			return this.address;
+		}
+
+		/**
+		 * @return the number of sends that have failed in a row
+		 */
+		public int getErrors() {
+			return this.errors;
+		}
+
+		@Override
+		public String toString() {
+			return host + ":" + port + " (" + (address == null ? "unresolved" : address) + ")";
+		}
+	}
+
+	protected final DatagramChannel channel;
+	protected final List<Destination> destinations;
+	/**
+	 * How often to re-resolve destinations, in milliseconds
+	 */
+	protected final long resolveInterval;
+	protected final int capabilities;
+	protected final Thread resolverThread;
+
+	/**
+	 * @param serverPort
+	 *            port to send from, and listen on
+	 * @param destinations
+	 *            where to send packets
+	 * @param resolveInterval
+	 *            how often to re-resolve destinations, in milliseconds
+	 * @param capabilities
+	 *            bitfield of the {@code HelloRioPacket.CAPABILITY_*} features
+	 *            to advertise
+	 * @see #startListening(Executor)
+	 */
+	public MultiRioClient(int serverPort, List<Destination> destinations, long resolveInterval, int capabilities) throws IOException {
+		this.destinations = Collections.unmodifiableList(new ArrayList<>(destinations));
+		this.resolveInterval = resolveInterval;
+		this.capabilities = capabilities;
+
+		System.out.println("Sending UDP from " + serverPort + " to " + destinations.size() + " destinations");
+
+		this.channel = DatagramChannel.open()
+				.setOption(StandardSocketOptions.SO_REUSEADDR, true)
+				.bind(new InetSocketAddress(serverPort));
+		this.channel.configureBlocking(false);
+
+		this.resolverThread = new Thread(this::runResolver);
+		this.resolverThread.setName("RioClient-resolver");
+		this.resolverThread.setDaemon(true);
+		this.resolverThread.start();
+	}
+
+	/**
+	 * @return the destinations that packets are sent to
+	 */
+	public List<Destination> getDestinations() {
+		return this.destinations;
+	}
+
+	/**
+	 * Resolve every destination, and then wait, until closed
+	 */
+	protected void runResolver() {
+		final HelloRioPacket helloPacket = new HelloRioPacket(this.capabilities);
+		ByteBuffer hello = ByteBuffer.allocateDirect(HEADER_SIZE + helloPacket.getLength());
+		try {
+			while (this.channel.isOpen()) {
+				for (Destination destination : this.destinations) {
+					// This might take a while, which is why it isn't done while sending
+					final InetSocketAddress address = new InetSocketAddress(destination.host, destination.port);
+					if (address.isUnresolved() || address.equals(destination.address))
+						continue;
+					System.out.println("Resolved " + destination.host + " => " + address);
+					destination.address = address;
+					destination.capabilities = 0;
+					try {
+						hello = write(helloPacket, hello);
+						this.channel.send(hello, address);
+					} catch (ClosedChannelException e) {
+						return;
+					} catch (IOException e) {
+						System.err.println("Couldn't send hello to " + destination + ": " + e);
+					}
+				}
+				Thread.sleep(this.resolveInterval);
+			}
+		} catch (InterruptedException e) {
+			// Closed
+		}
+	}
+
+	/**
+	 * Start listening for packets from the destinations. Clock sync requests
+	 * are answered (see {@link TimeSyncRioPacket} for how they work), and hello
+	 * packets update {@linkplain #getPeerCapabilities() what they support}.
+	 * Runs until the client is closed.
+	 *
+	 * @param executor
+	 *            executor to listen on
+	 */
+	public void startListening(Executor executor) {
+		executor.execute(this::runListener);
+	}
+
+	protected void runListener() {
+		final ByteBuffer request = ByteBuffer.allocate(RioClient.BUFFER_SIZE);
+		final TimeSyncRioPacket syncPacket = new TimeSyncRioPacket(0, 0);
+		ByteBuffer reply = ByteBuffer.allocateDirect(HEADER_SIZE + TimeSyncRioPacket.LENGTH);
+		try (Selector selector = Selector.open()) {
+			this.channel.register(selector, SelectionKey.OP_READ);
+			while (this.channel.isOpen()) {
+				selector.select();
+				selector.selectedKeys().clear();
+				SocketAddress from;
+				request.clear();
+				while ((from = this.channel.receive(request)) != null) {
+					final long receiveTime = System.nanoTime() / 1000;
+					request.flip();
+					// Ignore anything that isn't a packet we know
+					if (request.remaining() >= HEADER_SIZE) {
+						request.getInt();
+						final short status = request.getShort();
+						if (status == RioPacket.STATUS_TIME_SYNC && request.remaining() >= Long.BYTES) {
+							// Replied to right away, and only to whoever asked
+							reply = write(syncPacket.set(request.getLong(), receiveTime), reply);
+							this.channel.send(reply, from);
+						} else if (status == RioPacket.STATUS_HELLO_WORLD && request.remaining() >= HelloRioPacket.LENGTH) {
+							request.getLong();
+							final int capabilities = request.getShort() & 0xFFFF;
+							for (Destination destination : this.destinations) {
+								if (!from.equals(destination.address))
+									continue;
+								if (capabilities != destination.capabilities)
+									System.out.println("Capabilities of " + destination + ": 0x" + Integer.toHexString(capabilities));
+								destination.capabilities = capabilities;
+							}
+						}
+					}
+					request.clear();
+				}
+			}
+		} catch (ClosedChannelException | ClosedSelectorException e) {
+			// Closed
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Every destination is sent the same packets, so this is only what all of
+	 * them support. Destinations that haven't sent a hello packet don't
+	 * support anything.
+	 * </p>
+	 */
+	@Override
+	public int getPeerCapabilities() {
+		if (this.destinations.isEmpty())
+			return 0;
+		int capabilities = -1;
+		for (Destination destination : this.destinations)
+			capabilities &= destination.capabilities;
+		return capabilities;
+	}
+
+	@Override
+	protected void send(ByteBuffer buffer) throws IOException {
+		final long now = System.nanoTime();
+		for (Destination destination : this.destinations) {
+			final InetSocketAddress address = destination.address;
+			if (address == null || (destination.errors > 0 && now - destination.retryTime < 0)) {
+				SEND_SKIPPED.inc();
+				continue;
+			}
+			buffer.rewind();
+			try {
+				// Doesn't block; if the socket's full, the packet is dropped, like it would be on the wire
+				if (this.channel.send(buffer, address) == 0)
+					SEND_SKIPPED.inc();
+				destination.errors = 0;
+			} catch (ClosedChannelException e) {
+				throw e;
+			} catch (IOException e) {
+				SEND_ERRORS.inc();
+				if (destination.errors == 0)
+					System.err.println("Couldn't send to " + destination + ": " + e);
+				final long backoff = MIN_BACKOFF << Math.min(destination.errors, 16);
+				destination.retryTime = now + Math.min(backoff, MAX_BACKOFF);
+				destination.errors++;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		super.close();
+		this.resolverThread.interrupt();
+		this.channel.close();
+	}
+}
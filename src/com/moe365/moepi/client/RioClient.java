@@ -2,6 +2,7 @@ package com.moe365.moepi.client;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.List;
 
 import com.moe365.moepi.client.packets.*;
 import com.moe365.moepi.geom.PreciseRectangle;
@@ -48,9 +49,12 @@ import com.moe365.moepi.geom.PreciseRectangle;
  * <li>{@linkplain RioPacket#STATUS_FOUR_FOUND FOUR_FOUND}: 5</li>
  * <li>{@linkplain RioPacket#STATUS_FIVE_FOUND FIVE_FOUND}: 6</li>
  * <li>{@linkplain RioPacket#STATUS_SIX_FOUND SIX_FOUND}: 7</li>
+ * <li>{@linkplain RioPacket#STATUS_TARGETS TARGETS}: 8</li>
+ * <li>{@linkplain RioPacket#STATUS_TIMESTAMPED TIMESTAMPED}: 0x10</li>
  * <li>{@linkplain RioPacket#STATUS_ERROR ERROR}: 0x8000</li>
  * <li>{@linkplain RioPacket#STATUS_HELLO_WORLD HELLO_WORLD}: 0x8001</li>
  * <li>{@linkplain RioPacket#STATUS_GOODBYE GOODBYE}: 0x8002</li>
+ * <li>{@linkplain RioPacket#STATUS_TIME_SYNC TIME_SYNC}: 0x8003</li>
  * </ul>
  * All other status codes are reserved for future use.
  * </section>
@@ -108,14 +112,41 @@ public interface RioClient extends Closeable {
 	
 	void broadcast(RioPacket packet) throws IOException;
 	
+	/**
+	 * Get what the RIO has said it supports, in a {@link HelloRioPacket}.
+	 * @return bitfield of the {@code HelloRioPacket.CAPABILITY_*} features the
+	 *         RIO supports, or 0 if it hasn't said
+	 */
+	default int getPeerCapabilities() {
+		return 0;
+	}
+	
+	/**
+	 * Send a list of targets. Up to six are sent in the same format as
+	 * {@link #writeOneFound(PreciseRectangle)} and friends.
+	 * @param targets targets to send
+	 * @see TargetsRioPacket
+	 */
+	default void writeTargets(List<? extends PreciseRectangle> targets) throws IOException {
+		this.broadcast(new TargetsRioPacket(targets));
+	}
+	
 	default void writeNoneFound() throws IOException {
 		this.broadcast(new NoneFoundRioPacket());
 	}
 	
+	/**
+	 * @deprecated use {@link #writeTargets(List)}
+	 */
+	@Deprecated
 	default void writeOneFound(PreciseRectangle rect) throws IOException {
 		this.broadcast(new OneFoundRioPacket(rect));
 	}
 	
+	/**
+	 * @deprecated use {@link #writeTargets(List)}
+	 */
+	@Deprecated
 	default void writeOneFound(double left, double top, double width, double height) throws IOException {
 		this.broadcast(
 			new OneFoundRioPacket(
@@ -124,10 +155,18 @@ public interface RioClient extends Closeable {
 		);
 	}
 	
+	/**
+	 * @deprecated use {@link #writeTargets(List)}
+	 */
+	@Deprecated
 	default void writeTwoFound(PreciseRectangle rect1, PreciseRectangle rect2) throws IOException {
 		this.broadcast(new TwoFoundRioPacket(rect1, rect2));
 	}
 	
+	/**
+	 * @deprecated use {@link #writeTargets(List)}
+	 */
+	@Deprecated
 	default void writeTwoFound(double left1, double top1, double width1, double height1, double left2, double top2, double width2, double height2) throws IOException {
 		this.broadcast(
 			new TwoFoundRioPacket(
@@ -137,10 +176,18 @@ public interface RioClient extends Closeable {
 		);
 	}
 
+	/**
+	 * @deprecated use {@link #writeTargets(List)}
+	 */
+	@Deprecated
 	default void writeThreeFound(PreciseRectangle rect1, PreciseRectangle rect2, PreciseRectangle rect3) throws IOException {
 		this.broadcast(new ThreeFoundRioPacket(rect1, rect2, rect3));
 	}
 	
+	/**
+	 * @deprecated use {@link #writeTargets(List)}
+	 */
+	@Deprecated
 	default void writeThreeFound(double left1, double top1, double width1, double height1, 
 								double left2, double top2, double width2, double height2,
 								double left3, double top3, double width3, double height3) throws IOException {
@@ -153,10 +200,18 @@ public interface RioClient extends Closeable {
 		);
 	}
 
+	/**
+	 * @deprecated use {@link #writeTargets(List)}
+	 */
+	@Deprecated
 	default void writeFourFound(PreciseRectangle rect1, PreciseRectangle rect2, PreciseRectangle rect3, PreciseRectangle rect4) throws IOException {
 		this.broadcast(new FourFoundRioPacket(rect1, rect2, rect3, rect4));
 	}
 	
+	/**
+	 * @deprecated use {@link #writeTargets(List)}
+	 */
+	@Deprecated
 	default void writeFourFound(double left1, double top1, double width1, double height1, 
 								double left2, double top2, double width2, double height2,
 								double left3, double top3, double width3, double height3,
@@ -171,10 +226,18 @@ public interface RioClient extends Closeable {
 		);
 	}
 
+	/**
+	 * @deprecated use {@link #writeTargets(List)}
+	 */
+	@Deprecated
 	default void writeFiveFound(PreciseRectangle rect1, PreciseRectangle rect2, PreciseRectangle rect3, PreciseRectangle rect4, PreciseRectangle rect5) throws IOException {
 		this.broadcast(new FiveFoundRioPacket(rect1, rect2, rect3, rect4, rect5));
 	}
 	
+	/**
+	 * @deprecated use {@link #writeTargets(List)}
+	 */
+	@Deprecated
 	default void writeFiveFound(double left1, double top1, double width1, double height1, 
 								double left2, double top2, double width2, double height2,
 								double left3, double top3, double width3, double height3,
@@ -191,10 +254,18 @@ public interface RioClient extends Closeable {
 		);
 	}
 
+	/**
+	 * @deprecated use {@link #writeTargets(List)}
+	 */
+	@Deprecated
 	default void writeSixFound(PreciseRectangle rect1, PreciseRectangle rect2, PreciseRectangle rect3, PreciseRectangle rect4, PreciseRectangle rect5, PreciseRectangle rect6) throws IOException {
 		this.broadcast(new SixFoundRioPacket(rect1, rect2, rect3, rect4, rect5, rect6));
 	}
 	
+	/**
+	 * @deprecated use {@link #writeTargets(List)}
+	 */
+	@Deprecated
 	default void writeSixFound(double left1, double top1, double width1, double height1, 
 								double left2, double top2, double width2, double height2,
 								double left3, double top3, double width3, double height3,
@@ -6,10 +6,13 @@ import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
+import java.util.concurrent.Executor;
 
 import com.moe365.moepi.client.packets.HelloRioPacket;
 import com.moe365.moepi.client.packets.RioPacket;
+import com.moe365.moepi.client.packets.TimeSyncRioPacket;
 
 public class StaticRioClient extends AbstractRioClient {
 	
@@ -22,6 +25,10 @@ public class StaticRioClient extends AbstractRioClient {
 	 * RoboRIO's address.
 	 */
 	protected final SocketAddress address;
+	/**
+	 * Capabilities from the last hello packet that the RIO sent
+	 */
+	protected volatile int peerCapabilities = 0;
 	
 	public StaticRioClient(SocketAddress addr) throws SocketException, IOException {
 		this(RioClient.SERVER_PORT, addr);
@@ -33,6 +40,19 @@ public class StaticRioClient extends AbstractRioClient {
 	 * @param serverPort
 	 */
 	public StaticRioClient(int serverPort, SocketAddress addr) throws SocketException, IOException {
+		this(serverPort, addr, 0);
+	}
+	
+	/**
+	 * Create a client that WILL NOT resolve the passed address via mDNS
+	 * 
+	 * @param serverPort
+	 * @param capabilities
+	 *            bitfield of the {@code HelloRioPacket.CAPABILITY_*} features
+	 *            to advertise
+	 * @see #startListening(Executor)
+	 */
+	public StaticRioClient(int serverPort, SocketAddress addr, int capabilities) throws SocketException, IOException {
 		this.serverPort = serverPort;
 		this.address = addr;
 		
@@ -52,11 +72,63 @@ public class StaticRioClient extends AbstractRioClient {
 		
 		// Send hello packet
 		{
-			RioPacket helloPacket = new HelloRioPacket();
+			RioPacket helloPacket = new HelloRioPacket(capabilities);
 			this.broadcast(helloPacket);
 		}
 	}
 	
+	/**
+	 * Start listening for packets from the RIO. Clock sync requests are
+	 * answered (see {@link TimeSyncRioPacket} for how they work), and hello
+	 * packets update {@linkplain #getPeerCapabilities() what the RIO supports}.
+	 * Runs until the client is closed.
+	 * 
+	 * @param executor
+	 *            executor to listen on
+	 */
+	public void startListening(Executor executor) {
+		executor.execute(this::runListener);
+	}
+	
+	protected void runListener() {
+		final ByteBuffer request = ByteBuffer.allocate(RioClient.BUFFER_SIZE);
+		final TimeSyncRioPacket syncPacket = new TimeSyncRioPacket(0, 0);
+		// Replies are sent right away, instead of waiting in the queue, so the clock sync isn't thrown off
+		ByteBuffer reply = ByteBuffer.allocateDirect(HEADER_SIZE + TimeSyncRioPacket.LENGTH);
+		while (this.channel.isOpen()) {
+			try {
+				request.clear();
+				this.channel.receive(request);
+				final long receiveTime = System.nanoTime() / 1000;
+				request.flip();
+				// Ignore anything that isn't a packet we know
+				if (request.remaining() < HEADER_SIZE)
+					continue;
+				request.getInt();
+				final short status = request.getShort();
+				if (status == RioPacket.STATUS_TIME_SYNC && request.remaining() >= Long.BYTES) {
+					reply = write(syncPacket.set(request.getLong(), receiveTime), reply);
+					send(reply);
+				} else if (status == RioPacket.STATUS_HELLO_WORLD && request.remaining() >= HelloRioPacket.LENGTH) {
+					request.getLong();
+					final int capabilities = request.getShort() & 0xFFFF;
+					if (capabilities != this.peerCapabilities)
+						System.out.println("RIO capabilities: 0x" + Integer.toHexString(capabilities));
+					this.peerCapabilities = capabilities;
+				}
+			} catch (ClosedChannelException e) {
+				break;
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	@Override
+	public int getPeerCapabilities() {
+		return this.peerCapabilities;
+	}
+	
 	@Override
 	protected void send(ByteBuffer buffer) throws IOException {
 		this.channel.send(buffer, this.address);
@@ -64,6 +136,7 @@ public class StaticRioClient extends AbstractRioClient {
 	
 	@Override
 	public void close() throws IOException {
+		super.close();
 		this.channel.close();
 	}
 }
\ No newline at end of file
@@ -7,9 +7,61 @@ import java.nio.ByteBuffer;
  * ids will restart from 0 (expected behavior), but any devices listening to the UDP packets that it
  * emits will keep dropping packets until the id of the packets emitted by the current instance of
  * <code>MoePi</code> "catches up" with the previous one.
+ * <p>
+ * The payload is the Pi's time, in microseconds (64 bits), and a bitfield of
+ * the {@code CAPABILITY_*} features that this instance uses (16 bits). Older
+ * receivers that expect an empty payload can ignore it.
+ * </p>
+ * <p>
+ * The RIO may send a hello packet, with the same payload, to the Pi's port,
+ * to tell it which features it supports. Features that change the format of
+ * target packets (like {@link #CAPABILITY_FIXED16}) aren't used until the RIO
+ * says that it supports them.
+ * </p>
  * @author mailmindlin
  */
 public class HelloRioPacket implements RioPacket {
+	/**
+	 * Target packets will be wrapped in {@link TimestampedRioPacket}s
+	 */
+	public static final int CAPABILITY_TIMESTAMPS = 1 << 0;
+	/**
+	 * {@linkplain TimeSyncRioPacket Clock sync} requests will be answered
+	 */
+	public static final int CAPABILITY_TIME_SYNC = 1 << 1;
+	/**
+	 * Targets can be sent with the {@linkplain TargetsRioPacket.Encoding#FIXED16
+	 * FIXED16} encoding
+	 */
+	public static final int CAPABILITY_FIXED16 = 1 << 2;
+	/**
+	 * Targets can be sent with a {@linkplain TargetsRioPacket#ENCODING_CONFIDENCE
+	 * confidence} byte
+	 */
+	public static final int CAPABILITY_CONFIDENCE = 1 << 3;
+	/**
+	 * Targets can be sent with a {@linkplain TargetsRioPacket#ENCODING_ID
+	 * track ID}
+	 */
+	public static final int CAPABILITY_TRACK_ID = 1 << 4;
+	/**
+	 * Length of the payload
+	 */
+	public static final int LENGTH = Long.BYTES + Short.BYTES;
+	
+	protected final int capabilities;
+	
+	public HelloRioPacket() {
+		this(0);
+	}
+	
+	/**
+	 * @param capabilities bitfield of {@code CAPABILITY_*} flags
+	 */
+	public HelloRioPacket(int capabilities) {
+		this.capabilities = capabilities;
+	}
+	
 	@Override
 	public int getStatus() {
 		return RioPacket.STATUS_HELLO_WORLD;
@@ -17,11 +69,12 @@ public class HelloRioPacket implements RioPacket {
 	
 	@Override
 	public int getLength() {
-		return 0;
+		return LENGTH;
 	}
 	
 	@Override
 	public void writeTo(ByteBuffer buffer) {
-		//Nop
+		buffer.putLong(System.nanoTime() / 1000);
+		buffer.putShort((short) this.capabilities);
 	}
-}
\ No newline at end of file
+}
@@ -7,7 +7,9 @@ import com.moe365.moepi.geom.PreciseRectangle;
 /**
  * {@link RioPacket} that tells the Rio that we found one bounding box (and where it is, of course!)
  * @author mailmindlin
+ * @deprecated use {@link TargetsRioPacket}, which sends the same thing
  */
+@Deprecated
 public class OneFoundRioPacket implements RioPacket {
 	double x;
 	double y;
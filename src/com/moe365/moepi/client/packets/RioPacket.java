@@ -49,6 +49,17 @@ public interface RioPacket {
 	 * Denotes a packet telling the Rio that six targets have been found.
 	 */
 	public static final short STATUS_SIX_FOUND = 7;
+
+	/**
+	 * Denotes a packet with any number of targets. See {@link TargetsRioPacket}.
+	 */
+	public static final short STATUS_TARGETS = 8;
+
+	/**
+	 * Denotes a packet that wraps another target packet with when its frames
+	 * were captured. See {@link TimestampedRioPacket}.
+	 */
+	public static final short STATUS_TIMESTAMPED = 0x10;
 	
 	// Statuses >= 0x8000 are special metadata things, and shouldn't be
 	// discarded, ever
@@ -66,6 +77,11 @@ public interface RioPacket {
 	 * Signals that the sender is terminating in an expected manner.
 	 */
 	public static final short STATUS_GOODBYE = (short) 0x8002;
+	/**
+	 * A request from the reciever to sync clocks, or the reply to one. See
+	 * {@link TimeSyncRioPacket}.
+	 */
+	public static final short STATUS_TIME_SYNC = (short) 0x8003;
 	
 	/**
 	 * Get the status code for this packet
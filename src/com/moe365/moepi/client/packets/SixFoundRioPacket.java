@@ -4,6 +4,10 @@ import java.nio.ByteBuffer;
 
 import com.moe365.moepi.geom.PreciseRectangle;
 
+/**
+ * @deprecated use {@link TargetsRioPacket}, which sends the same thing
+ */
+@Deprecated
 public class SixFoundRioPacket implements RioPacket {
     private final PreciseRectangle rect1, rect2, rect3, rect4, rect5, rect6;
 
@@ -0,0 +1,312 @@
+package com.moe365.moepi.client.packets;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+import com.moe365.moepi.client.AbstractRioClient;
+import com.moe365.moepi.client.RioClient;
+import com.moe365.moepi.geom.PreciseRectangle;
+import com.moe365.moepi.geom.TrackedRectangle;
+
+/**
+ * A {@link RioPacket} with any number of targets, replacing
+ * {@link NoneFoundRioPacket} through {@link SixFoundRioPacket}.
+ * <p>
+ * With the {@link Encoding#DOUBLE DOUBLE} encoding, up to six targets are
+ * sent exactly like the old packets (with the status codes
+ * {@linkplain RioPacket#STATUS_NONE_FOUND NONE_FOUND} through
+ * {@linkplain RioPacket#STATUS_SIX_FOUND SIX_FOUND}, and a payload of 4
+ * doubles per target), so old RIO code can still read them. Otherwise, the
+ * status is {@linkplain RioPacket#STATUS_TARGETS TARGETS}, and the payload is:
+ * <pre>
+ * &nbsp;&nbsp;0 1 2 3 4 5 6 7 0 1 2 3 4 5 6 7 0 1 2 3 4 5 6 7 0 1 2 3 4 5 6 7
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * |       Number of targets       |           Encoding            |
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * |                          Targets...                           |
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * </pre>
+ * where each target is its x, y, width and height, in the given
+ * {@linkplain Encoding#getCode() encoding}. If the {@link #ENCODING_CONFIDENCE}
+ * bit of the encoding field is set, each target is followed by a byte of
+ * confidence, from 0 (none) to 255 (certain). If the {@link #ENCODING_ID} bit
+ * is set, each target (and its confidence) is then followed by its track ID,
+ * as a 16-bit unsigned number that stays the same for as long as the target
+ * is {@linkplain TrackedRectangle tracked}, so the RIO doesn't have to match
+ * up targets between packets itself. IDs wrap around after 0xFFFE, and
+ * targets that aren't tracked have the ID {@link #NO_ID}.
+ * </p>
+ * <p>
+ * If there are more targets than fit in the maximum payload length, only the
+ * first ones are sent. The DOUBLE encoding falls back to the old format if
+ * that fits more of them.
+ * </p>
+ * <p>
+ * The rectangles are read when the packet is written, not when it's
+ * created, and nothing is copied, so one packet can be reused for every
+ * frame with {@link #setTargets(List)}.
+ * </p>
+ * @author mailmindlin
+ */
+public class TargetsRioPacket implements RioPacket {
+	/**
+	 * Default maximum length of a payload, so that packets fit in
+	 * {@link RioClient#BUFFER_SIZE}
+	 */
+	public static final int DEFAULT_MAX_LENGTH = RioClient.BUFFER_SIZE - AbstractRioClient.HEADER_SIZE;
+	/**
+	 * Most targets that can be sent with the old status codes
+	 */
+	public static final int MAX_LEGACY_TARGETS = 6;
+	/**
+	 * Length of the count and encoding
+	 */
+	protected static final int TARGETS_HEADER_LENGTH = 2 * Short.BYTES;
+	/**
+	 * Bit of the encoding field that is set if each target has a confidence byte
+	 */
+	public static final int ENCODING_CONFIDENCE = 0x100;
+	/**
+	 * Bit of the encoding field that is set if each target has a track ID
+	 */
+	public static final int ENCODING_ID = 0x200;
+	/**
+	 * Track ID sent for targets that aren't being tracked
+	 */
+	public static final int NO_ID = 0xFFFF;
+
+	/**
+	 * How target coordinates are written
+	 */
+	public static enum Encoding {
+		/**
+		 * 64-bit IEEE floating point
+		 */
+		DOUBLE(0, Double.BYTES),
+		/**
+		 * 32-bit IEEE floating point. Half the size of DOUBLE, and much more
+		 * precise than a camera frame needs.
+		 */
+		FLOAT(1, Float.BYTES),
+		/**
+		 * 16-bit unsigned fixed point, from 0 (0x0000) to 1 (0xFFFF), which
+		 * is what all coordinates are, since they're fractions of the frame.
+		 * A quarter the size of DOUBLE, and still precise to well under a
+		 * pixel. Out of range values are clamped.
+		 */
+		FIXED16(2, Short.BYTES);
+
+		protected final int code;
+		protected final int bytesPerValue;
+
+		Encoding(int code, int bytesPerValue) {
+			this.code = code;
+			this.bytesPerValue = bytesPerValue;
+		}
+
+		/**
+		 * @return the value of the encoding field for this encoding
+		 */
+		public int getCode() {
+			return this.code;
+		}
+
+		/**
+		 * @return the number of bytes the coordinates of each target take up
+		 */
+		public int getTargetLength() {
+			return 4 * this.bytesPerValue;
+		}
+	}
+
+	protected Encoding encoding;
+	protected boolean confidence;
+	protected boolean ids;
+	protected final int maxLength;
+	protected List<? extends PreciseRectangle> targets;
+
+	public TargetsRioPacket(List<? extends PreciseRectangle> targets) {
+		this(targets, Encoding.DOUBLE, DEFAULT_MAX_LENGTH);
+	}
+
+	/**
+	 * @param targets targets to send
+	 * @param encoding how to write the targets
+	 * @param maxLength the longest that the payload may be, in bytes
+	 */
+	public TargetsRioPacket(List<? extends PreciseRectangle> targets, Encoding encoding, int maxLength) {
+		this.maxLength = maxLength;
+		setEncoding(encoding, false);
+		setTargets(targets);
+	}
+
+	/**
+	 * Set how the targets are written
+	 * @param encoding encoding for coordinates
+	 * @param confidence whether to write each target's
+	 *            {@linkplain PreciseRectangle#getConfidence() confidence}
+	 * @return self
+	 */
+	public TargetsRioPacket setEncoding(Encoding encoding, boolean confidence) {
+		return setEncoding(encoding, confidence, false);
+	}
+
+	/**
+	 * Set how the targets are written
+	 * @param encoding encoding for coordinates
+	 * @param confidence whether to write each target's
+	 *            {@linkplain PreciseRectangle#getConfidence() confidence}
+	 * @param ids whether to write each target's
+	 *            {@linkplain TrackedRectangle#getId() track ID}
+	 * @return self
+	 */
+	public TargetsRioPacket setEncoding(Encoding encoding, boolean confidence, boolean ids) {
+		this.encoding = encoding;
+		this.confidence = confidence;
+		this.ids = ids;
+		if (getCapacity(false) < 1 && getCapacity(true) < 1)
+			throw new IllegalArgumentException("No targets fit in " + maxLength + " bytes");
+		return this;
+	}
+
+	/**
+	 * Set the targets to send the next time this packet is written
+	 * @param targets targets
+	 * @return self
+	 */
+	public TargetsRioPacket setTargets(List<? extends PreciseRectangle> targets) {
+		this.targets = targets == null ? Collections.emptyList() : targets;
+		return this;
+	}
+
+	public Encoding getEncoding() {
+		return this.encoding;
+	}
+
+	/**
+	 * @return whether each target's confidence is written
+	 */
+	public boolean hasConfidence() {
+		return this.confidence;
+	}
+
+	/**
+	 * @return whether each target's track ID is written
+	 */
+	public boolean hasIds() {
+		return this.ids;
+	}
+
+	/**
+	 * @return the number of bytes each target takes up
+	 */
+	protected int getTargetLength() {
+		return encoding.getTargetLength() + (confidence ? 1 : 0) + (ids ? Short.BYTES : 0);
+	}
+
+	/**
+	 * @param legacy whether to get the capacity of the old format
+	 * @return the most targets that fit in a packet
+	 */
+	protected int getCapacity(boolean legacy) {
+		if (legacy)
+			return encoding == Encoding.DOUBLE && !confidence && !ids ? Math.min(MAX_LEGACY_TARGETS, maxLength / getTargetLength()) : 0;
+		return Math.max(0, (maxLength - TARGETS_HEADER_LENGTH) / getTargetLength());
+	}
+
+	/**
+	 * @return whether the targets will be written in the old format
+	 */
+	protected boolean isLegacy() {
+		final int count = targets.size();
+		final int legacyCapacity = getCapacity(true);
+		return Math.min(count, legacyCapacity) >= Math.min(count, getCapacity(false));
+	}
+
+	/**
+	 * @return the number of targets that will be written
+	 */
+	public int getCount() {
+		return Math.min(targets.size(), getCapacity(isLegacy()));
+	}
+
+	@Override
+	public int getStatus() {
+		if (!isLegacy())
+			return RioPacket.STATUS_TARGETS;
+		// The old status codes count up from NONE_FOUND
+		return RioPacket.STATUS_NONE_FOUND + getCount();
+	}
+
+	@Override
+	public int getLength() {
+		final int length = getCount() * getTargetLength();
+		return isLegacy() ? length : TARGETS_HEADER_LENGTH + length;
+	}
+
+	@Override
+	public void writeTo(ByteBuffer buffer) {
+		final int count = getCount();
+		if (!isLegacy()) {
+			buffer.putShort((short) count);
+			buffer.putShort((short) (encoding.getCode() | (confidence ? ENCODING_CONFIDENCE : 0) | (ids ? ENCODING_ID : 0)));
+		}
+		for (int i = 0; i < count; i++) {
+			final PreciseRectangle target = targets.get(i);
+			switch (encoding) {
+				case DOUBLE:
+					buffer.putDouble(target.getX());
+					buffer.putDouble(target.getY());
+					buffer.putDouble(target.getWidth());
+					buffer.putDouble(target.getHeight());
+					break;
+				case FLOAT:
+					buffer.putFloat((float) target.getX());
+					buffer.putFloat((float) target.getY());
+					buffer.putFloat((float) target.getWidth());
+					buffer.putFloat((float) target.getHeight());
+					break;
+				case FIXED16:
+					buffer.putShort(toFixed16(target.getX()));
+					buffer.putShort(toFixed16(target.getY()));
+					buffer.putShort(toFixed16(target.getWidth()));
+					buffer.putShort(toFixed16(target.getHeight()));
+					break;
+			}
+			if (confidence)
+				buffer.put((byte) Math.round(clamp(target.getConfidence()) * 0xFF));
+			if (ids)
+				buffer.putShort((short) toWireId(target));
+		}
+	}
+
+	/**
+	 * Get the ID to send for a target
+	 * @return the target's track ID, wrapped to 16 bits (skipping
+	 *         {@link #NO_ID}), or {@link #NO_ID} if it isn't tracked
+	 */
+	public static int toWireId(PreciseRectangle target) {
+		if (!(target instanceof TrackedRectangle))
+			return NO_ID;
+		return Integer.remainderUnsigned(((TrackedRectangle) target).getId(), NO_ID);
+	}
+
+	protected static double clamp(double value) {
+		return value < 0 ? 0 : (value > 1 ? 1 : value);
+	}
+
+	/**
+	 * Convert a fraction in [0, 1] to 16-bit unsigned fixed point
+	 */
+	public static short toFixed16(double value) {
+		return (short) Math.round(clamp(value) * 0xFFFF);
+	}
+
+	/**
+	 * Convert a 16-bit unsigned fixed point number back to a fraction
+	 */
+	public static double fromFixed16(short value) {
+		return (value & 0xFFFF) / (double) 0xFFFF;
+	}
+}
@@ -0,0 +1,71 @@
+package com.moe365.moepi.client.packets;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reply to a clock sync request from the RIO, so that it can convert the
+ * capture times in {@link TimestampedRioPacket}s to its own clock.
+ * <p>
+ * The RIO sends a packet with the {@linkplain RioPacket#STATUS_TIME_SYNC
+ * TIME_SYNC} status, and a payload of its own time (<var>t0</var>, 64 bits, in
+ * any unit it likes), to the Pi's port. The Pi replies with a payload of:
+ * <ol>
+ * <li><var>t0</var>, copied from the request</li>
+ * <li><var>t1</var>: when the request was received, in microseconds on the Pi's clock</li>
+ * <li><var>t2</var>: when the reply was sent, in microseconds on the Pi's clock</li>
+ * </ol>
+ * If the reply is received at <var>t3</var> (converted to microseconds), the
+ * Pi's clock is ahead of the RIO's by about <code>((t1 - t0) + (t2 - t3)) / 2</code>,
+ * give or take half of the round trip time, <code>(t3 - t0) - (t2 - t1)</code>.
+ * Keeping the sample with the shortest round trip out of a few gives the best
+ * estimate.
+ * </p>
+ * @author mailmindlin
+ */
+public class TimeSyncRioPacket implements RioPacket {
+	/**
+	 * Length of the payload
+	 */
+	public static final int LENGTH = 3 * Long.BYTES;
+	
+	protected long requestTime;
+	protected long receiveTime;
+	
+	/**
+	 * @param requestTime the RIO's time, from the request
+	 * @param receiveTime when the request was received, in microseconds
+	 */
+	public TimeSyncRioPacket(long requestTime, long receiveTime) {
+		set(requestTime, receiveTime);
+	}
+	
+	/**
+	 * Reuse this packet for another request
+	 * @param requestTime the RIO's time, from the request
+	 * @param receiveTime when the request was received, in microseconds
+	 * @return self
+	 */
+	public TimeSyncRioPacket set(long requestTime, long receiveTime) {
+		this.requestTime = requestTime;
+		this.receiveTime = receiveTime;
+		return this;
+	}
+	
+	@Override
+	public int getStatus() {
+		return RioPacket.STATUS_TIME_SYNC;
+	}
+	
+	@Override
+	public int getLength() {
+		return LENGTH;
+	}
+	
+	@Override
+	public void writeTo(ByteBuffer buffer) {
+		buffer.putLong(this.requestTime);
+		buffer.putLong(this.receiveTime);
+		// Written as late as we can
+		buffer.putLong(System.nanoTime() / 1000);
+	}
+}
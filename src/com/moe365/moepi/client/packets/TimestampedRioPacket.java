@@ -0,0 +1,80 @@
+package com.moe365.moepi.client.packets;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link RioPacket} that wraps another packet with when the frames it was
+ * found in were captured.
+ * <p>
+ * The payload is:
+ * <pre>
+ * &nbsp;&nbsp;0 1 2 3 4 5 6 7 0 1 2 3 4 5 6 7 0 1 2 3 4 5 6 7 0 1 2 3 4 5 6 7
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * |                                                               |
+ * +                         Capture time                          +
+ * |                                                               |
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * |                           Latency                             |
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * |         Inner status          |        Inner payload...       |
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * </pre>
+ * The capture time is in microseconds, on the Pi's monotonic clock (see
+ * {@link TimeSyncRioPacket} for how to convert it to the RIO's clock), and the
+ * latency is the number of microseconds between capture and sending. The
+ * inner status and payload are exactly what the wrapped packet would have
+ * sent on its own.
+ * </p>
+ * @author mailmindlin
+ */
+public class TimestampedRioPacket implements RioPacket {
+	/**
+	 * Bytes that this packet adds to the wrapped packet
+	 */
+	public static final int OVERHEAD = Long.BYTES + Integer.BYTES + Short.BYTES;
+	
+	protected RioPacket packet;
+	protected long captureTime;
+	protected int latency;
+	
+	/**
+	 * @param packet packet to wrap
+	 * @param captureTime time that the frames were captured, in microseconds
+	 * @param latency microseconds between capture and now
+	 */
+	public TimestampedRioPacket(RioPacket packet, long captureTime, long latency) {
+		set(packet, captureTime, latency);
+	}
+	
+	/**
+	 * Reuse this packet, so that one doesn't have to be created for every frame
+	 * @param packet packet to wrap
+	 * @param captureTime time that the frames were captured, in microseconds
+	 * @param latency microseconds between capture and now
+	 * @return self
+	 */
+	public TimestampedRioPacket set(RioPacket packet, long captureTime, long latency) {
+		this.packet = packet;
+		this.captureTime = captureTime;
+		this.latency = (int) Math.min(Integer.MAX_VALUE, latency);
+		return this;
+	}
+	
+	@Override
+	public int getStatus() {
+		return RioPacket.STATUS_TIMESTAMPED;
+	}
+	
+	@Override
+	public int getLength() {
+		return OVERHEAD + packet.getLength();
+	}
+	
+	@Override
+	public void writeTo(ByteBuffer buffer) {
+		buffer.putLong(this.captureTime);
+		buffer.putInt(this.latency);
+		buffer.putShort((short) packet.getStatus());
+		packet.writeTo(buffer);
+	}
+}
@@ -0,0 +1,96 @@
+package com.moe365.moepi.geom;
+
+/**
+ * The bounding box of a connected component (blob) in a mask, along with
+ * some statistics about the pixels in it.
+ * 
+ * @author mailmindlin (FRC Team 365)
+ * @see com.moe365.moepi.processing.ConnectedComponentLabeler ConnectedComponentLabeler
+ */
+public class ComponentRectangle extends MutablePreciseRectangle {
+	protected int pixelCount;
+	protected double centroidX, centroidY;
+	protected double fillRatio;
+	
+	public ComponentRectangle() {
+		super();
+	}
+	
+	/**
+	 * Set the statistics of this component
+	 * 
+	 * @param pixelCount
+	 *            number of pixels in the component
+	 * @param centroidX
+	 *            X coordinate of the mean of the component's pixels
+	 * @param centroidY
+	 *            Y coordinate of the mean of the component's pixels
+	 * @param fillRatio
+	 *            fraction of the pixels in the bounding box that are in the
+	 *            component
+	 * @return self
+	 */
+	public ComponentRectangle setStats(int pixelCount, double centroidX, double centroidY, double fillRatio) {
+		this.pixelCount = pixelCount;
+		this.centroidX = centroidX;
+		this.centroidY = centroidY;
+		this.fillRatio = fillRatio;
+		return this;
+	}
+	
+	/**
+	 * @return the number of pixels in the component
+	 */
+	public int getPixelCount() {
+		return this.pixelCount;
+	}
+	
+	/**
+	 * @return the X coordinate of the component's centroid, in the same units
+	 *         as {@link #getX()}
+	 */
+	public double getCentroidX() {
+		return this.centroidX;
+	}
+	
+	/**
+	 * @return the Y coordinate of the component's centroid, in the same units
+	 *         as {@link #getY()}
+	 */
+	public double getCentroidY() {
+		return this.centroidY;
+	}
+	
+	/**
+	 * @return the fraction (in [0, 1]) of the bounding box that the
+	 *         component fills. A solid rectangle is 1; a ring or a diagonal
+	 *         line is much less.
+	 */
+	public double getFillRatio() {
+		return this.fillRatio;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The centroid is scaled by the X and Y factors. Pixel count and fill ratio
+	 * don't change.
+	 * </p>
+	 */
+	@Override
+	public ComponentRectangle scaleInPlace(double xf, double yf, double wf, double hf) {
+		super.scaleInPlace(xf, yf, wf, hf);
+		this.centroidX *= xf;
+		this.centroidY *= yf;
+		return this;
+	}
+	
+	@Override
+	public String toString() {
+		return new StringBuilder(super.toString())
+				.append(" {pixels: ").append(getPixelCount())
+				.append(", centroid: (").append(getCentroidX()).append(", ").append(getCentroidY())
+				.append("), fill: ").append(getFillRatio()).append('}')
+				.toString();
+	}
+}
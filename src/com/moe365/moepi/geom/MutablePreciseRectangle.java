@@ -0,0 +1,57 @@
+package com.moe365.moepi.geom;
+
+/**
+ * A {@link PreciseRectangle} whose bounds can be changed, so that it can be
+ * reused instead of allocating a new rectangle for every result.
+ * <p>
+ * Because other code may assume that PreciseRectangles are immutable, a
+ * mutable rectangle must not be changed while anything else holds a reference
+ * to it.
+ * </p>
+ * 
+ * @author mailmindlin (FRC Team 365)
+ */
+public class MutablePreciseRectangle extends PreciseRectangle {
+	/**
+	 * Create a rectangle at (0, 0) with a size of 0x0
+	 */
+	public MutablePreciseRectangle() {
+		super();
+	}
+	
+	public MutablePreciseRectangle(double x, double y, double width, double height) {
+		super(x, y, width, height);
+	}
+	
+	/**
+	 * Set the bounds of this rectangle.
+	 * 
+	 * @return self
+	 */
+	public MutablePreciseRectangle set(double x, double y, double width, double height) {
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+		this.hash = 0;
+		return this;
+	}
+	
+	/**
+	 * Scale all coordinates by the given value, in place.
+	 * 
+	 * @param xf
+	 *            factor for the X coordinate
+	 * @param yf
+	 *            factor for the Y coordinate
+	 * @param wf
+	 *            factor for the width
+	 * @param hf
+	 *            factor for the height
+	 * @return self
+	 * @see #scale(double, double, double, double)
+	 */
+	public MutablePreciseRectangle scaleInPlace(double xf, double yf, double wf, double hf) {
+		return set(x * xf, y * yf, width * wf, height * hf);
+	}
+}
@@ -12,13 +12,21 @@ import java.util.function.Function;
 import com.moe365.moepi.util.ReflectionUtils;
 
 /**
- * Like a Rectangle, but immutable, and double precision.
+ * Like a Rectangle, but double precision.
+ * <p>
+ * Instances of this class itself never change. The fields are not final only
+ * so that {@link MutablePreciseRectangle} (and its subclasses, like
+ * {@link TrackedRectangle}) can be recycled between frames, and image
+ * processors pass those on as plain PreciseRectangles. So a PreciseRectangle
+ * that came from somewhere else is only safe to keep (or put in a hash set) if
+ * you know it's immutable; otherwise, keep its {@link #immutableCopy()}.
+ * </p>
  * 
  * @since April 2016
  * @author mailmindlin (FRC Team 365)
  */
 public class PreciseRectangle implements Externalizable {
-	protected final double x, y, width, height;
+	protected double x, y, width, height;
 	protected transient int hash = 0;
 	
 	public static Function<PreciseRectangle, PreciseRectangle> scalar(double xf, double yf, double wf, double hf) {
@@ -83,6 +91,16 @@ public class PreciseRectangle implements Externalizable {
 		return width * height;
 	}
 	
+	/**
+	 * Get how sure we are that this rectangle is a target
+	 * 
+	 * @return confidence, from 0 (not at all) to 1 (certain). Plain
+	 *         rectangles are always 1.
+	 */
+	public double getConfidence() {
+		return 1.0;
+	}
+	
 	/**
 	 * Scale the width and height by a given factor. The top-left corner is not
 	 * changed.
@@ -112,6 +130,18 @@ public class PreciseRectangle implements Externalizable {
 		return new PreciseRectangle(x * xf, y * yf, width * wf, height * hf);
 	}
 	
+	/**
+	 * Get a copy of this rectangle that won't change
+	 * 
+	 * @return this, if it's a plain PreciseRectangle, or a new one with the
+	 *         same bounds
+	 */
+	public PreciseRectangle immutableCopy() {
+		if (getClass() == PreciseRectangle.class)
+			return this;
+		return new PreciseRectangle(getX(), getY(), getWidth(), getHeight());
+	}
+	
 	public static class PreciseRectangleAreaComparator implements Comparator<PreciseRectangle> {
 		@Override
 		public int compare(PreciseRectangle a, PreciseRectangle b) {
@@ -0,0 +1,109 @@
+package com.moe365.moepi.geom;
+
+/**
+ * A target that has been followed across frames, with bounds that have been
+ * filtered instead of measured directly.
+ *
+ * @author mailmindlin (FRC Team 365)
+ * @see com.moe365.moepi.processing.TargetTracker TargetTracker
+ */
+public class TrackedRectangle extends MutablePreciseRectangle {
+	protected int id;
+	protected double velocityX, velocityY;
+	protected int age;
+	protected int misses;
+	protected double confidence = 1.0;
+
+	public TrackedRectangle(int id) {
+		super();
+		this.id = id;
+	}
+
+	/**
+	 * Set the track state of this rectangle
+	 *
+	 * @param velocityX
+	 *            estimated speed of the center along the X axis, in units of
+	 *            {@link #getX()} per second
+	 * @param velocityY
+	 *            estimated speed of the center along the Y axis, in units of
+	 *            {@link #getY()} per second
+	 * @param age
+	 *            number of frames that the target has been seen in
+	 * @param misses
+	 *            number of frames since the target was last seen
+	 * @param confidence
+	 *            how sure the tracker is about the target, from 0 to 1
+	 * @return self
+	 */
+	public TrackedRectangle setTrack(double velocityX, double velocityY, int age, int misses, double confidence) {
+		this.velocityX = velocityX;
+		this.velocityY = velocityY;
+		this.age = age;
+		this.misses = misses;
+		this.confidence = confidence;
+		return this;
+	}
+
+	/**
+	 * @return an ID for the target, which is the same in every frame that it
+	 *         is tracked in, and is never reused
+	 */
+	public int getId() {
+		return this.id;
+	}
+
+	/**
+	 * @return the estimated speed of the center of the target along the X
+	 *         axis, per second
+	 */
+	public double getVelocityX() {
+		return this.velocityX;
+	}
+
+	/**
+	 * @return the estimated speed of the center of the target along the Y
+	 *         axis, per second
+	 */
+	public double getVelocityY() {
+		return this.velocityY;
+	}
+
+	/**
+	 * @return the number of frames that the target has been seen in
+	 */
+	public int getAge() {
+		return this.age;
+	}
+
+	/**
+	 * @return the number of frames since the target was last seen. If this
+	 *         isn't 0, the bounds are predicted, not measured.
+	 */
+	public int getMisses() {
+		return this.misses;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * New targets, and targets that haven't been seen for a few frames, are
+	 * less certain.
+	 * </p>
+	 */
+	@Override
+	public double getConfidence() {
+		return this.confidence;
+	}
+
+	@Override
+	public String toString() {
+		return new StringBuilder(super.toString())
+				.append(" {id: ").append(getId())
+				.append(", velocity: (").append(getVelocityX()).append(", ").append(getVelocityY())
+				.append("), age: ").append(getAge())
+				.append(", misses: ").append(getMisses())
+				.append(", confidence: ").append(getConfidence()).append('}')
+				.toString();
+	}
+}
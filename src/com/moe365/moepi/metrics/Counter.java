@@ -0,0 +1,49 @@
+package com.moe365.moepi.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count of events that only goes up. Incrementing it is lock-free, and
+ * doesn't contend between threads.
+ * @author mailmindlin
+ */
+public class Counter extends Metric {
+	protected final LongAdder count = new LongAdder();
+
+	public Counter(String name, String help) {
+		super(name, help);
+	}
+
+	/**
+	 * Count one event
+	 */
+	public void inc() {
+		count.increment();
+	}
+
+	/**
+	 * Count some events
+	 * @param n number of events
+	 */
+	public void add(long n) {
+		count.add(n);
+	}
+
+	/**
+	 * @return the number of events counted
+	 */
+	public long get() {
+		return count.sum();
+	}
+
+	@Override
+	public void writePrometheus(StringBuilder sb) {
+		writePrometheusHeader(sb, "counter");
+		sb.append(name).append(' ').append(get()).append('\n');
+	}
+
+	@Override
+	public void writeJson(StringBuilder sb) {
+		sb.append(get());
+	}
+}
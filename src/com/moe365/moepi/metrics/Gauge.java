@@ -0,0 +1,31 @@
+package com.moe365.moepi.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * A value that is read when the metrics are (e.g., a queue length).
+ * @author mailmindlin
+ */
+public class Gauge extends Metric {
+	protected final LongSupplier value;
+
+	public Gauge(String name, String help, LongSupplier value) {
+		super(name, help);
+		this.value = value;
+	}
+
+	public long get() {
+		return value.getAsLong();
+	}
+
+	@Override
+	public void writePrometheus(StringBuilder sb) {
+		writePrometheusHeader(sb, "gauge");
+		sb.append(name).append(' ').append(get()).append('\n');
+	}
+
+	@Override
+	public void writeJson(StringBuilder sb) {
+		sb.append(get());
+	}
+}
@@ -0,0 +1,152 @@
+package com.moe365.moepi.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations, in nanoseconds, with logarithmic buckets.
+ * <p>
+ * Like an HDR histogram, each power of 2 is split into
+ * {@value #SUB_BUCKETS} linear sub-buckets, so every value is recorded with
+ * at most 1/{@value #SUB_BUCKETS} relative error, for any value that fits in a
+ * long, using a fixed {@value #NUM_BUCKETS} buckets. Recording is lock-free,
+ * and doesn't allocate.
+ * </p>
+ * <p>
+ * Values are exported in seconds.
+ * </p>
+ * @author mailmindlin
+ */
+public class Histogram extends Metric {
+	protected static final int SUB_BUCKET_BITS = 3;
+	protected static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	protected static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+	/**
+	 * Quantiles that are exported
+	 */
+	protected static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+	/**
+	 * JSON keys for {@link #QUANTILES}
+	 */
+	protected static final String[] QUANTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+	protected final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+	protected final LongAdder count = new LongAdder();
+	protected final LongAdder sum = new LongAdder();
+	protected final AtomicLong max = new AtomicLong();
+
+	public Histogram(String name, String help) {
+		super(name, help);
+	}
+
+	/**
+	 * Get the index of the bucket that a value goes in
+	 */
+	protected static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS)
+			return value < 0 ? 0 : (int) value;
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * Get the smallest value that goes in a bucket
+	 */
+	protected static long bucketLowerBound(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		final int exponent = (index >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+		return ((long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1)))) << (exponent - SUB_BUCKET_BITS);
+	}
+
+	/**
+	 * Record a value
+	 * @param nanos duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		buckets.incrementAndGet(bucketIndex(nanos));
+		count.increment();
+		sum.add(nanos);
+		long prev;
+		while (nanos > (prev = max.get()) && !max.compareAndSet(prev, nanos));
+	}
+
+	/**
+	 * Record the time since <var>startNanos</var>
+	 * @param startNanos start time, from {@link System#nanoTime()}
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return sum of all values, in nanoseconds
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * @return largest value, in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Estimate a quantile. The result is the upper bound of the bucket that
+	 * the quantile falls in (but not more than the max).
+	 * @param quantile quantile, in [0, 1]
+	 * @return the quantile, in nanoseconds, or 0 if nothing has been recorded
+	 */
+	public long getQuantile(double quantile) {
+		long total = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++)
+			total += buckets.get(i);
+		if (total == 0)
+			return 0;
+		final long target = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= target)
+				return Math.min(getMax(), i + 1 < NUM_BUCKETS ? bucketLowerBound(i + 1) - 1 : Long.MAX_VALUE);
+		}
+		return getMax();
+	}
+
+	protected static double toSeconds(long nanos) {
+		return nanos / 1e9;
+	}
+
+	@Override
+	public void writePrometheus(StringBuilder sb) {
+		writePrometheusHeader(sb, "summary");
+		for (double quantile : QUANTILES) {
+			sb.append(name).append("{quantile=\"").append(quantile).append("\"} ");
+			appendDouble(sb, toSeconds(getQuantile(quantile))).append('\n');
+		}
+		sb.append(name).append("_sum ");
+		appendDouble(sb, toSeconds(getSum())).append('\n');
+		sb.append(name).append("_count ").append(getCount()).append('\n');
+	}
+
+	@Override
+	public void writeJson(StringBuilder sb) {
+		final long count = getCount();
+		sb.append("{\"count\":").append(count);
+		sb.append(",\"mean\":");
+		appendDouble(sb, count == 0 ? 0 : toSeconds(getSum()) / count);
+		for (int i = 0; i < QUANTILES.length; i++) {
+			sb.append(",\"").append(QUANTILE_NAMES[i]).append("\":");
+			appendDouble(sb, toSeconds(getQuantile(QUANTILES[i])));
+		}
+		sb.append(",\"max\":");
+		appendDouble(sb, toSeconds(getMax())).append('}');
+	}
+}
@@ -0,0 +1,77 @@
+package com.moe365.moepi.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link Counter} that also keeps track of how fast it's going up (e.g.,
+ * frames per second).
+ * <p>
+ * Events are counted in one-second slots, and the rate is the average over
+ * the last {@value #WINDOW} complete seconds. Slots are reset without locking,
+ * so an event counted at the exact moment that its slot is recycled may be
+ * lost from the rate (but not from the count).
+ * </p>
+ * @author mailmindlin
+ */
+public class Meter extends Counter {
+	/**
+	 * Number of seconds to average the rate over
+	 */
+	public static final int WINDOW = 5;
+	/**
+	 * Number of slots. Must be a power of 2 greater than {@link #WINDOW}.
+	 */
+	protected static final int NUM_SLOTS = 8;
+	protected static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+	/**
+	 * Number of events in each slot
+	 */
+	protected final AtomicLongArray slotCounts = new AtomicLongArray(NUM_SLOTS);
+	/**
+	 * The second that each slot is counting
+	 */
+	protected final AtomicLongArray slotSeconds = new AtomicLongArray(NUM_SLOTS);
+
+	public Meter(String name, String help) {
+		super(name, help);
+		for (int i = 0; i < NUM_SLOTS; i++)
+			slotSeconds.set(i, Long.MIN_VALUE);
+	}
+
+	@Override
+	public void inc() {
+		add(1);
+	}
+
+	@Override
+	public void add(long n) {
+		super.add(n);
+		final long second = System.nanoTime() / NANOS_PER_SECOND;
+		final int slot = (int) second & (NUM_SLOTS - 1);
+		final long slotSecond = slotSeconds.get(slot);
+		if (slotSecond != second && slotSeconds.compareAndSet(slot, slotSecond, second))
+			slotCounts.set(slot, 0);
+		slotCounts.addAndGet(slot, n);
+	}
+
+	/**
+	 * @return the average number of events per second over the last {@value #WINDOW} seconds
+	 */
+	public double getRate() {
+		final long now = System.nanoTime() / NANOS_PER_SECOND;
+		long total = 0;
+		for (long second = now - WINDOW; second < now; second++) {
+			final int slot = (int) second & (NUM_SLOTS - 1);
+			if (slotSeconds.get(slot) == second)
+				total += slotCounts.get(slot);
+		}
+		return total / (double) WINDOW;
+	}
+
+	@Override
+	public void writeJson(StringBuilder sb) {
+		sb.append("{\"count\":").append(get()).append(",\"rate\":");
+		appendDouble(sb, getRate()).append('}');
+	}
+}
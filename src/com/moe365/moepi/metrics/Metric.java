@@ -0,0 +1,55 @@
+package com.moe365.moepi.metrics;
+
+/**
+ * Base class for a named metric.
+ * @author mailmindlin
+ * @see MetricsRegistry
+ */
+public abstract class Metric {
+	protected final String name;
+	protected final String help;
+
+	protected Metric(String name, String help) {
+		this.name = name;
+		this.help = help;
+	}
+
+	/**
+	 * @return the name of this metric, in Prometheus style (e.g., <code>moepi_diff_seconds</code>)
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * @return a description of this metric
+	 */
+	public String getHelp() {
+		return this.help;
+	}
+
+	/**
+	 * Write this metric in the Prometheus text format, including the
+	 * <code># HELP</code> and <code># TYPE</code> lines.
+	 */
+	public abstract void writePrometheus(StringBuilder sb);
+
+	/**
+	 * Write the value of this metric as a JSON value
+	 */
+	public abstract void writeJson(StringBuilder sb);
+
+	protected void writePrometheusHeader(StringBuilder sb, String type) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	/**
+	 * Append a double in a format that both JSON and Prometheus accept
+	 */
+	protected static StringBuilder appendDouble(StringBuilder sb, double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			return sb.append('0');
+		return sb.append(value);
+	}
+}
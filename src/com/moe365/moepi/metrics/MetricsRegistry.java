@@ -0,0 +1,98 @@
+package com.moe365.moepi.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * A set of named metrics.
+ * <p>
+ * Metrics should be looked up once (e.g., into a static field), and then
+ * recorded to directly, so that recording doesn't have to go through the
+ * registry.
+ * </p>
+ * @author mailmindlin
+ * @see MetricsServlet
+ */
+public class MetricsRegistry {
+	private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+	/**
+	 * @return the registry that MoePi's metrics are registered in
+	 */
+	public static MetricsRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Metrics, sorted by name
+	 */
+	protected final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+	/**
+	 * Get or create a counter
+	 */
+	public Counter counter(String name, String help) {
+		return register(name, Counter.class, n -> new Counter(n, help));
+	}
+
+	/**
+	 * Get or create a meter
+	 */
+	public Meter meter(String name, String help) {
+		return register(name, Meter.class, n -> new Meter(n, help));
+	}
+
+	/**
+	 * Get or create a histogram
+	 */
+	public Histogram histogram(String name, String help) {
+		return register(name, Histogram.class, n -> new Histogram(n, help));
+	}
+
+	/**
+	 * Register a gauge, replacing any existing gauge with the same name
+	 */
+	public Gauge gauge(String name, String help, LongSupplier value) {
+		Gauge gauge = new Gauge(name, help, value);
+		// Only replaced if it's a gauge, so a clash doesn't clobber another metric
+		Metric old = metrics.compute(name, (n, existing) -> existing == null || existing instanceof Gauge ? gauge : existing);
+		if (old != gauge)
+			throw new IllegalArgumentException("Metric " + name + " is already registered as a " + old.getClass().getSimpleName());
+		return gauge;
+	}
+
+	protected <T extends Metric> T register(String name, Class<T> type, Function<String, T> factory) {
+		Metric metric = metrics.computeIfAbsent(name, factory);
+		if (!type.isInstance(metric))
+			throw new IllegalArgumentException("Metric " + name + " is already registered as a " + metric.getClass().getSimpleName());
+		return type.cast(metric);
+	}
+
+	/**
+	 * Write all metrics in the Prometheus text format
+	 */
+	public String toPrometheus() {
+		StringBuilder sb = new StringBuilder();
+		for (Metric metric : metrics.values())
+			metric.writePrometheus(sb);
+		return sb.toString();
+	}
+
+	/**
+	 * Write all metrics as a JSON object, keyed by name
+	 */
+	public String toJson() {
+		StringBuilder sb = new StringBuilder("{");
+		boolean first = true;
+		for (Metric metric : metrics.values()) {
+			if (!first)
+				sb.append(',');
+			first = false;
+			sb.append('"').append(metric.getName()).append("\":");
+			metric.writeJson(sb);
+		}
+		return sb.append('}').toString();
+	}
+}
@@ -0,0 +1,38 @@
+package com.moe365.moepi.metrics;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the metrics in a registry. Requests for paths ending in
+ * <code>.json</code> (or with <code>?format=json</code>) get JSON; everything
+ * else gets the Prometheus text format.
+ * @author mailmindlin
+ */
+public class MetricsServlet extends HttpServlet {
+	private static final long serialVersionUID = 3655024734466254437L;
+	protected final transient MetricsRegistry registry;
+
+	public MetricsServlet(MetricsRegistry registry) {
+		this.registry = registry;
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		final boolean json = req.getRequestURI().endsWith(".json") || "json".equals(req.getParameter("format"));
+		resp.setStatus(HttpServletResponse.SC_OK);
+		resp.setHeader("Cache-Control", "no-cache");
+		if (json) {
+			resp.setContentType("application/json");
+			resp.setCharacterEncoding("UTF-8");
+			resp.getWriter().write(registry.toJson());
+		} else {
+			resp.setContentType("text/plain; version=0.0.4");
+			resp.setCharacterEncoding("UTF-8");
+			resp.getWriter().write(registry.toPrometheus());
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package com.moe365.moepi.net;
 
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.servlet.DefaultServlet;
@@ -9,21 +10,35 @@ import org.eclipse.jetty.servlet.ServletHolder;
 
 import com.moe365.moepi.geom.Polygon;
 import com.moe365.moepi.geom.PreciseRectangle;
+import com.moe365.moepi.metrics.MetricsRegistry;
+import com.moe365.moepi.metrics.MetricsServlet;
 import com.moe365.moepi.net.impl.OverlayBroadcastChannel;
 import com.moe365.moepi.net.impl.MjpegBroadcastChannel;
+import com.moe365.moepi.net.impl.ScaledMjpegBroadcastChannel;
 import com.moe365.moepi.net.impl.WsDataSource;
 
+import au.edu.jcu.v4l4j.ImagePalette;
 import au.edu.jcu.v4l4j.VideoFrame;
+import au.edu.jcu.v4l4j.encoder.JPEGEncoder;
 
 public class MPHttpServer {
+	/**
+	 * ID of the first {@linkplain #addScaledVideoChannel(int, int, ImagePalette) scaled video channel}
+	 */
+	public static final int FIRST_SCALED_CHANNEL_ID = 367;
 	protected final Server server;
 	protected final ServletContextHandler context;
 	protected final WsDataSource source;
 	protected final MjpegBroadcastChannel videoChannel;
 	protected final OverlayBroadcastChannel overlayChannel;
+	protected final List<ScaledMjpegBroadcastChannel> scaledChannels = new CopyOnWriteArrayList<>();
+	protected final int width;
+	protected final int height;
 	
 	public MPHttpServer(int port, String staticDir, int width, int height) {
 		this.server = new Server(port);
+		this.width = width;
+		this.height = height;
 		this.context = new ServletContextHandler(ServletContextHandler.SESSIONS | ServletContextHandler.NO_SECURITY);
 		context.setContextPath("/");
 		server.setHandler(context);
@@ -38,6 +53,11 @@ public class MPHttpServer {
 		this.source = new WsDataSource();
 		context.addServlet(new ServletHolder(this.source), "/vdc.ws");
 		
+		//Metrics, as Prometheus text or JSON
+		ServletHolder metricsHolder = new ServletHolder(new MetricsServlet(MetricsRegistry.getDefault()));
+		context.addServlet(metricsHolder, "/metrics");
+		context.addServlet(metricsHolder, "/metrics.json");
+		
 //		DataChannel random = new RandomlyBroadcastingChannel(this.source, 1000, "random");
 //		this.source.registerChannel(random);
 		this.videoChannel = new MjpegBroadcastChannel(this.source, 365, "Main MJPEG video stream", width, height);
@@ -55,6 +75,42 @@ public class MPHttpServer {
 	
 	public void offerFrame(VideoFrame frame) {
 		this.videoChannel.offerFrame(frame);
+		for (ScaledMjpegBroadcastChannel channel : this.scaledChannels)
+			channel.offerFrame(frame);
+	}
+	
+	/**
+	 * Add a smaller copy of the video stream. Clients can tell the channels
+	 * apart by their {@code video.width} and {@code video.height} metadata.
+	 * Frames are only scaled while someone is subscribed.
+	 * 
+	 * @param scale
+	 *            factor to divide the width and height by
+	 * @param quality
+	 *            JPEG quality, from 1 to 100
+	 * @param palette
+	 *            format of offered frames, or null if they're JPEG
+	 * @return the new channel
+	 * @throws IllegalArgumentException
+	 *             if the scale or quality are out of range
+	 * @see ScaledMjpegBroadcastChannel
+	 */
+	public ScaledMjpegBroadcastChannel addScaledVideoChannel(int scale, int quality, ImagePalette palette) {
+		final int id = FIRST_SCALED_CHANNEL_ID + this.scaledChannels.size();
+		ScaledMjpegBroadcastChannel channel = new ScaledMjpegBroadcastChannel(this.source, id, "1/" + scale + " scale MJPEG video stream", width, height, scale, quality, palette);
+		channel.setMetadata("overlayChannelId", "" + this.overlayChannel.getId());
+		this.scaledChannels.add(channel);
+		this.source.registerChannel(channel);
+		return channel;
+	}
+	
+	/**
+	 * Set the encoder for frames offered to the video stream, if they aren't
+	 * captured as JPEG.
+	 * @see MjpegBroadcastChannel#setEncoder(JPEGEncoder)
+	 */
+	public void setFrameEncoder(JPEGEncoder encoder) {
+		this.videoChannel.setEncoder(encoder);
 	}
 	
 	public void offerPolygons(List<Polygon> polygons) {
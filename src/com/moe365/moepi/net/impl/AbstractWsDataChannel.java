@@ -21,6 +21,8 @@ import com.moe365.moepi.net.impl.WsDataSource.WsClient;
 import com.moe365.moepi.net.packet.DataPacket;
 import com.moe365.moepi.net.packet.MutableDataPacket;
 import com.moe365.moepi.net.packet.MutableWrappingDataPacket;
+import com.moe365.moepi.util.BufferPool;
+import com.moe365.moepi.util.BufferPool.PooledBuffer;
 
 /**
  * An implementation of {@link com.moe365.moepi.net.channel.DataChannel DataChannel}
@@ -33,6 +35,11 @@ public abstract class AbstractWsDataChannel implements DataChannel {
 	protected int id;
 	protected String name;
 	protected Set<WsClient> subscribers;
+	/**
+	 * Buffers for packets broadcast to subscribers. Each buffer is returned
+	 * once every subscriber is done writing it.
+	 */
+	protected final BufferPool bufferPool = new BufferPool();
 	
 	public AbstractWsDataChannel() {
 		this(new HashMap<>());
@@ -93,6 +100,18 @@ public abstract class AbstractWsDataChannel implements DataChannel {
 		return mutablePacket;
 	}
 
+	/**
+	 * Write a prepared packet to a buffer from the {@link #bufferPool}
+	 * @param prepared packet to write
+	 * @return flipped buffer holding the packet, with one reference
+	 */
+	protected PooledBuffer serialize(DataPacket prepared) {
+		final PooledBuffer result = bufferPool.acquire(prepared.getLength());
+		prepared.writeTo(result.buffer());
+		result.buffer().flip();
+		return result;
+	}
+
 	@Override
 	public CompletableFuture<Void> broadcastPacket(DataPacket packet) {
 		if (this.subscribers.isEmpty())
@@ -108,9 +127,15 @@ public abstract class AbstractWsDataChannel implements DataChannel {
 			throw e;
 		}
 		
+		// Serialize once, and share the buffer between all the subscribers
+		final PooledBuffer shared = serialize(prepared);
+		
 		// TODO fix for clients added/removed while iterating
-		for (WsClient client : subscribers)
-			result.add(client.write(prepared));
+		for (WsClient client : subscribers) {
+			shared.retain();
+			result.add(client.write(shared.buffer().asReadOnlyBuffer()).whenComplete((r, e) -> shared.release()));
+		}
+		shared.release();
 		return CompletableFuture.allOf(result.toArray(new CompletableFuture[result.size()]));
 	}
 
@@ -3,27 +3,112 @@ package com.moe365.moepi.net.impl;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
+import com.moe365.moepi.metrics.Counter;
+import com.moe365.moepi.metrics.Gauge;
+import com.moe365.moepi.metrics.MetricsRegistry;
 import com.moe365.moepi.net.channel.DataChannelClient;
 import com.moe365.moepi.net.channel.DataChannelDirection;
 import com.moe365.moepi.net.channel.DataChannelMediaType;
+import com.moe365.moepi.net.channel.UnsubscriptionReason;
+import com.moe365.moepi.net.impl.WsDataSource.WsClient;
 import com.moe365.moepi.net.packet.DataPacket;
 import com.moe365.moepi.net.packet.StreamFramePacket;
+import com.moe365.moepi.util.BufferPool.PooledBuffer;
 
 import au.edu.jcu.v4l4j.VideoFrame;
+import au.edu.jcu.v4l4j.encoder.JPEGEncoder;
 
+/**
+ * Streams frames to clients as MJPEG.
+ * <p>
+ * Each client has at most one frame being written to it, and one waiting to
+ * be written, which is replaced whenever a newer frame comes in, so a slow
+ * client just gets fewer frames, without holding up anyone else. On top of
+ * that, clients are sent frames no faster than about how long writing them
+ * has been taking, so a client on a bad connection doesn't get its link
+ * saturated with frames that will be out of date by the time they arrive.
+ * </p>
+ * @author mailmindlin
+ */
 public class MjpegBroadcastChannel extends AbstractWsDataChannel implements Runnable {
+	protected static final Counter FRAMES_DROPPED = MetricsRegistry.getDefault().counter("moepi_mjpeg_dropped_total", "Frames not streamed to a client because it was still busy with an earlier one");
+	/**
+	 * Number of frames being written to clients, over every channel (so that
+	 * the scaled preview channels don't each replace the gauge)
+	 */
+	protected static final AtomicInteger BACKLOG = new AtomicInteger(0);
+	protected static final Gauge BACKLOG_GAUGE = MetricsRegistry.getDefault().gauge("moepi_mjpeg_backlog", "MJPEG frames being sent to clients, over all video streams", BACKLOG::get);
+	/**
+	 * Weight of each write in the average write time
+	 */
+	protected static final double LATENCY_SMOOTHING = 0.2;
+	/**
+	 * How much longer than the average write time to wait between frames
+	 */
+	protected static final double INTERVAL_HEADROOM = 1.25;
+	/**
+	 * Longest time to wait between frames to a client, in nanoseconds
+	 */
+	protected static final long MAX_INTERVAL = 1_000_000_000L;
 
-	protected final int STATUS_EMPTY = 0;
-	protected final int STATUS_FILLED = 1;
-	protected final int STATUS_READING = 2;
-	protected final int STATUS_WRITING = 3;
+	/**
+	 * Size that frame buffers start out at
+	 */
+	protected static final int INITIAL_FRAME_CAPACITY = 256 * 1024;
+	/**
+	 * Bit of {@link #middle} that's set if it holds a frame that the sender
+	 * hasn't picked up yet
+	 */
+	protected static final int FRESH = 0x4;
+	protected static final int INDEX_MASK = 0x3;
 	
-	protected final AtomicInteger imageStatus = new AtomicInteger(0);
-	protected final AtomicInteger backlog = new AtomicInteger(0);
+	/**
+	 * Thread running {@link #run()}, which sleeps until there's something to
+	 * send
+	 */
+	protected volatile Thread senderThread;
+	/**
+	 * State of each subscriber
+	 */
+	protected final ConcurrentHashMap<DataChannelClient, ClientStream> streams = new ConcurrentHashMap<>();
 	
-	protected final ByteBuffer imageBuffer = ByteBuffer.allocate(256 * 1024);
+	/**
+	 * Triple buffer of frames, as offered. Direct, so that the {@link #encoder}
+	 * can read them without a copy. At any time, one is owned by the capture thread
+	 * ({@link #back}), one by the sender ({@link #front}), and the one in
+	 * between holds the latest frame that's been handed off ({@link #middle}).
+	 * A buffer is only replaced (with a bigger one) by whoever owns it.
+	 */
+	protected final ByteBuffer[] frames = new ByteBuffer[3];
+	/**
+	 * Index of the buffer being filled. Only used by the capture thread.
+	 */
+	protected int back = 0;
+	/**
+	 * Index of the latest frame handed off, ORed with {@link #FRESH} if the
+	 * sender hasn't picked it up yet
+	 */
+	protected final AtomicInteger middle = new AtomicInteger(1);
+	/**
+	 * Index of the buffer being sent. Only used by the sender thread.
+	 */
+	protected int front = 2;
+	
+	/**
+	 * Encodes frames to JPEG, if they're not captured as JPEG. Only frames
+	 * that are actually broadcast are encoded, on the sender thread, so
+	 * encoding never holds up capture.
+	 */
+	protected volatile JPEGEncoder encoder;
+	/**
+	 * Frame encoded by the {@link #encoder}. Only used by the sender thread.
+	 */
+	protected ByteBuffer encodedFrame;
 	
 	public MjpegBroadcastChannel(WsDataSource source, int id, String name, int width, int height) {
 		super(source, id, name);
@@ -32,6 +117,17 @@ public class MjpegBroadcastChannel extends AbstractWsDataChannel implements Runn
 		metadata.put("video.format", "MJPEG");
 		metadata.put("video.width", Integer.toString(width));
 		metadata.put("video.height", Integer.toString(height));
+		for (int i = 0; i < frames.length; i++)
+			frames[i] = ByteBuffer.allocateDirect(INITIAL_FRAME_CAPACITY);
+	}
+	
+	/**
+	 * Set the encoder to use for frames offered to this channel. Use this if
+	 * frames aren't captured as JPEG.
+	 * @param encoder encoder to use, or null if frames are already JPEG
+	 */
+	public void setEncoder(JPEGEncoder encoder) {
+		this.encoder = encoder;
 	}
 	
 	@Override
@@ -50,47 +146,138 @@ public class MjpegBroadcastChannel extends AbstractWsDataChannel implements Runn
 		return null;
 	}
 
+	@Override
+	protected boolean onSubscription(DataChannelClient client) {
+		streams.putIfAbsent(client, new ClientStream((WsClient) client));
+		return super.onSubscription(client);
+	}
+	
+	@Override
+	protected void onUnsubscription(DataChannelClient client, UnsubscriptionReason reason) {
+		super.onUnsubscription(client, reason);
+		ClientStream stream = streams.remove(client);
+		if (stream != null)
+			stream.discard();
+	}
+	
 	@Override
 	public void run() {
 		System.out.println("Starting broadcast channel @ port " + this.getId());
-		DataPacket imagePacket = StreamFramePacket.wrapImage(imageBuffer);
+		this.senderThread = Thread.currentThread();
+		// Packets wrapping each frame buffer, rebuilt if the buffer is replaced
+		final DataPacket[] packets = new DataPacket[frames.length];
+		final ByteBuffer[] wrapped = new ByteBuffer[frames.length];
 		while (!Thread.interrupted()) {
-			if (imageStatus.compareAndSet(STATUS_FILLED, STATUS_READING)) {
-				backlog.incrementAndGet();
-				synchronized (imageBuffer) {
-					this.broadcastPacket(imagePacket).whenComplete((r,e)->backlog.decrementAndGet());
+			if ((middle.get() & FRESH) != 0) {
+				// Swap the latest frame for the one we were done with
+				this.front = middle.getAndSet(this.front) & INDEX_MASK;
+				final ByteBuffer image = encodeFrame(frames[front]);
+				if (image == null)
+					continue;
+				if (wrapped[front] != image) {
+					wrapped[front] = image;
+					packets[front] = StreamFramePacket.wrapImage(image);
 				}
-				imageStatus.set(STATUS_EMPTY);
+				final PooledBuffer frame = serialize(preparePacket(packets[front]));
+				for (ClientStream stream : streams.values())
+					stream.offer(frame);
+				frame.release();
 			}
-			try {
-				Thread.sleep(10);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-				break;
+			// Send frames that were waiting for their client's interval to pass
+			final long now = System.nanoTime();
+			long deadline = Long.MAX_VALUE;
+			for (ClientStream stream : streams.values()) {
+				stream.pump(now);
+				deadline = Math.min(deadline, stream.getDeadline());
 			}
+			// Wait for a new frame, or until the next waiting frame can be sent
+			if ((middle.get() & FRESH) != 0)
+				continue;
+			else if (deadline == Long.MAX_VALUE)
+				LockSupport.park(this);
+			else if (deadline - now > 0)
+				LockSupport.parkNanos(this, deadline - now);
 		}
+		this.senderThread = null;
 		System.err.println("Bye!");
 	}
 	
+	/**
+	 * Turn a frame, as offered, into the JPEG to send. Called on the sender
+	 * thread.
+	 * @param frame frame, as offered
+	 * @return JPEG to send, which may be the same buffer, or null to skip
+	 *         the frame
+	 */
+	protected ByteBuffer encodeFrame(ByteBuffer frame) {
+		final JPEGEncoder encoder = this.encoder;
+		if (encoder == null)
+			return frame;
+		try {
+			ByteBuffer image = this.encodedFrame;
+			final int estimate = encoder.estimateDestinationLength();
+			if (image == null || image.capacity() < estimate)
+				this.encodedFrame = image = ByteBuffer.allocateDirect(estimate);
+			image.clear();
+			int length;
+			try {
+				length = encoder.apply(frame.duplicate(), image);
+			} catch (BufferOverflowException e) {
+				// The estimate was too small; try again with plenty of room
+				System.out.println("Growing MJPEG encode buffer to " + image.capacity() * 2 + " bytes");
+				this.encodedFrame = image = ByteBuffer.allocateDirect(image.capacity() * 2);
+				length = encoder.apply(frame.duplicate(), image);
+			}
+			image.limit(length);
+			image.position(0);
+			return image;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Wake up the sender thread, if it's waiting
+	 */
+	protected void wakeSender() {
+		final Thread senderThread = this.senderThread;
+		if (senderThread != null && senderThread != Thread.currentThread())
+			LockSupport.unpark(senderThread);
+	}
+	
+	/**
+	 * Offer a frame to be streamed. Never waits for the sender; if it hasn't
+	 * picked up the last frame offered yet, that frame is replaced. Frames
+	 * are only copied, not encoded, here, and not even copied if no one is
+	 * subscribed. May only be called from one thread at a time.
+	 * @param frame frame to stream
+	 */
 	public void offerFrame(VideoFrame frame) {
-		if (backlog.get() > 10) {
-			//Backlog is too big; drop frame
-			System.out.println("Dropping frame (backlog = " + backlog.get() + ")");
+		if (streams.isEmpty())
 			return;
+		final ByteBuffer source = frame.getBuffer();
+		final ByteBuffer image = ensureCapacity(source.remaining());
+		image.clear();
+		image.put(source.duplicate());
+		image.flip();
+		// Hand off the frame, and take back whatever buffer was there
+		this.back = middle.getAndSet(back | FRESH) & INDEX_MASK;
+		wakeSender();
+	}
+	
+	/**
+	 * Make sure that the {@linkplain #back back buffer} can hold a frame
+	 * @param capacity bytes needed
+	 * @return the back buffer
+	 */
+	protected ByteBuffer ensureCapacity(int capacity) {
+		ByteBuffer image = frames[back];
+		if (image.capacity() < capacity) {
+			System.out.println("Growing MJPEG frame buffer to " + capacity + " bytes");
+			frames[back] = image = ByteBuffer.allocateDirect(capacity);
 		}
-		if (imageStatus.compareAndSet(STATUS_EMPTY, STATUS_WRITING)) {
-			synchronized (imageBuffer) {
-				imageBuffer.clear();
-				try {
-					imageBuffer.put(frame.getBuffer());
-				} catch (BufferOverflowException e) {
-					System.err.println("Oversized frame: " + frame.getBuffer().remaining());
-					throw e;
-				}
-				imageBuffer.flip();
-			}
-			imageStatus.set(STATUS_FILLED);
-		}
+		return image;
 	}
 
 	@Override
@@ -99,4 +286,107 @@ public class MjpegBroadcastChannel extends AbstractWsDataChannel implements Runn
 		
 	}
 	
+	/**
+	 * Frames being sent to a client
+	 */
+	protected class ClientStream {
+		protected final WsClient client;
+		/**
+		 * Newest frame that hasn't been sent yet
+		 */
+		protected final AtomicReference<PooledBuffer> pending = new AtomicReference<>();
+		/**
+		 * Whether a frame is being written
+		 */
+		protected final AtomicBoolean inFlight = new AtomicBoolean(false);
+		/**
+		 * Average time to write a frame, in nanoseconds. Only written while
+		 * a frame is in flight.
+		 */
+		protected volatile double writeTime = 0;
+		/**
+		 * When the last frame was sent
+		 */
+		protected volatile long lastSendTime;
+		
+		protected ClientStream(WsClient client) {
+			this.client = client;
+			this.lastSendTime = System.nanoTime() - MAX_INTERVAL;
+		}
+		
+		/**
+		 * @return the least time to wait between frames, in nanoseconds
+		 */
+		public long getInterval() {
+			return Math.min(MAX_INTERVAL, (long) (writeTime * INTERVAL_HEADROOM));
+		}
+		
+		/**
+		 * @return when the pending frame can be sent, or
+		 *         {@link Long#MAX_VALUE} if there isn't one, or it will be
+		 *         sent when the frame in flight is done
+		 */
+		protected long getDeadline() {
+			if (pending.get() == null || inFlight.get())
+				return Long.MAX_VALUE;
+			return lastSendTime + getInterval();
+		}
+		
+		/**
+		 * Queue a frame to be sent, replacing any frame that's waiting
+		 */
+		protected void offer(PooledBuffer frame) {
+			PooledBuffer replaced = pending.getAndSet(frame.retain());
+			if (replaced != null) {
+				FRAMES_DROPPED.inc();
+				replaced.release();
+			}
+			pump(System.nanoTime());
+		}
+		
+		/**
+		 * Send the pending frame, if there is one, and nothing is in flight,
+		 * and it's been long enough since the last frame.
+		 */
+		protected void pump(long now) {
+			while (pending.get() != null && inFlight.compareAndSet(false, true)) {
+				if (now - lastSendTime < getInterval()) {
+					// Too soon; the sender will pick it up later
+					inFlight.set(false);
+					wakeSender();
+					return;
+				}
+				final PooledBuffer frame = pending.getAndSet(null);
+				if (frame == null) {
+					inFlight.set(false);
+					continue;
+				}
+				send(frame, now);
+				return;
+			}
+		}
+		
+		protected void send(PooledBuffer frame, long start) {
+			lastSendTime = start;
+			BACKLOG.incrementAndGet();
+			client.write(frame.buffer().asReadOnlyBuffer()).whenComplete((r, e) -> {
+				final long end = System.nanoTime();
+				frame.release();
+				BACKLOG.decrementAndGet();
+				writeTime += ((end - start) - writeTime) * LATENCY_SMOOTHING;
+				inFlight.set(false);
+				if (e == null)
+					pump(end);
+			});
+		}
+		
+		/**
+		 * Drop the pending frame, if any
+		 */
+		protected void discard() {
+			PooledBuffer frame = pending.getAndSet(null);
+			if (frame != null)
+				frame.release();
+		}
+	}
 }
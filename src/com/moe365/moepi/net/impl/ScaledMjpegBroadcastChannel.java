@@ -0,0 +1,299 @@
+package com.moe365.moepi.net.impl;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import au.edu.jcu.v4l4j.ImagePalette;
+import au.edu.jcu.v4l4j.encoder.JPEGEncoder;
+
+/**
+ * A smaller, lower quality copy of the video stream, for dashboards that
+ * only show it as a thumbnail, so they don't use up the radio's bandwidth.
+ * <p>
+ * Offered frames are only copied while someone is subscribed, and are
+ * scaled and encoded on this channel's own thread, so capture and processing
+ * never wait on it. Raw (YUYV or RGB24) frames are subsampled, and encoded
+ * with a {@link JPEGEncoder}; JPEG frames have to be decoded and re-encoded,
+ * which is a lot slower.
+ * </p>
+ * <p>
+ * The thread asks for a low priority, but that's only a hint, which Linux
+ * ignores unless the JVM is started with {@code -XX:ThreadPriorityPolicy}.
+ * So that this can't take CPU time away from processing anyways, frames are
+ * skipped while scaling would take more than {@link #MAX_DUTY_CYCLE} of the
+ * thread's time.
+ * </p>
+ * @author mailmindlin
+ */
+public class ScaledMjpegBroadcastChannel extends MjpegBroadcastChannel {
+	/**
+	 * Most of the time that may be spent scaling and encoding frames. After
+	 * a frame that took <var>t</var> to encode, frames are skipped until
+	 * <var>t</var> / MAX_DUTY_CYCLE has passed since it started.
+	 */
+	public static final double MAX_DUTY_CYCLE = 0.25;
+
+	protected final int sourceWidth;
+	protected final int sourceHeight;
+	protected final int width;
+	protected final int height;
+	/**
+	 * Factor that the width and height are divided by
+	 */
+	protected final int scale;
+	protected final int quality;
+	/**
+	 * Format of offered frames, or null if they're JPEG
+	 */
+	protected final ImagePalette palette;
+
+	/**
+	 * Subsampled raw frame
+	 */
+	protected ByteBuffer scaledBuffer;
+	/**
+	 * Encoded frame
+	 */
+	protected ByteBuffer jpegBuffer;
+	protected JPEGEncoder scaledEncoder;
+	/**
+	 * When the next frame may be encoded
+	 */
+	protected long nextEncodeTime = System.nanoTime();
+
+	// For re-encoding JPEG frames
+	protected byte[] jpegInput;
+	protected BufferedImage decodedImage;
+	protected BufferedImage scaledImage;
+	protected ImageReader jpegReader;
+	protected ImageReadParam jpegReadParam;
+	protected ImageWriter jpegWriter;
+	protected ImageWriteParam jpegParam;
+	protected final JpegOutputStream jpegOutput = new JpegOutputStream();
+
+	/**
+	 * @param width
+	 *            width of offered frames
+	 * @param height
+	 *            height of offered frames
+	 * @param scale
+	 *            factor to divide the width and height by
+	 * @param quality
+	 *            JPEG quality, from 1 to 100
+	 * @param palette
+	 *            format of offered frames, or null if they're JPEG
+	 * @throws IllegalArgumentException
+	 *             if the scale or quality are out of range, or frames of the
+	 *             palette can't be scaled
+	 */
+	public ScaledMjpegBroadcastChannel(WsDataSource source, int id, String name, int width, int height, int scale, int quality, ImagePalette palette) {
+		// YUYV pixels come in pairs
+		super(source, id, name, checkScale(width, height, scale), height / scale);
+		if (quality < 1 || quality > 100)
+			throw new IllegalArgumentException("Invalid JPEG quality (expect: 1-100; quality = " + quality + ")");
+		if (palette != null && palette != ImagePalette.YUYV && palette != ImagePalette.RGB24)
+			throw new IllegalArgumentException("Can't scale " + palette + " frames");
+		this.sourceWidth = width;
+		this.sourceHeight = height;
+		this.width = (width / scale) & ~1;
+		this.height = height / scale;
+		this.scale = scale;
+		this.quality = quality;
+		this.palette = palette;
+		metadata.put("video.scale", Integer.toString(scale));
+		metadata.put("video.quality", Integer.toString(quality));
+	}
+
+	/**
+	 * @return the width of scaled frames
+	 * @throws IllegalArgumentException if the frame can't be scaled down that much
+	 */
+	protected static int checkScale(int width, int height, int scale) {
+		if (scale < 1 || (width / scale) < 2 || height / scale < 1)
+			throw new IllegalArgumentException("Invalid preview scale (expect: 1-" + Math.min(width / 2, height) + "; scale = " + scale + ")");
+		return (width / scale) & ~1;
+	}
+
+	/**
+	 * Ignored. Frames have to be scaled before they're encoded, so this
+	 * channel always encodes them itself, with its own quality, using
+	 * the palette it was created with.
+	 */
+	@Override
+	public void setEncoder(JPEGEncoder encoder) {
+	}
+
+	/**
+	 * Runs the sender at {@link Thread#MIN_PRIORITY}, where the OS respects
+	 * it. See the class doc for what actually keeps this from slowing down
+	 * processing.
+	 */
+	@Override
+	public void run() {
+		final Thread thread = Thread.currentThread();
+		final int priority = thread.getPriority();
+		thread.setPriority(Thread.MIN_PRIORITY);
+		try {
+			super.run();
+		} finally {
+			thread.setPriority(priority);
+		}
+	}
+
+	@Override
+	protected ByteBuffer encodeFrame(ByteBuffer frame) {
+		final long start = System.nanoTime();
+		if (start - nextEncodeTime < 0)
+			// Still over budget from the last frame
+			return null;
+		try {
+			if (palette == null)
+				return reencode(frame);
+			subsample(frame);
+			if (scaledEncoder == null) {
+				scaledEncoder = JPEGEncoder.from(width, height, palette);
+				scaledEncoder.setQuality(quality);
+				jpegBuffer = ByteBuffer.allocateDirect(scaledEncoder.estimateDestinationLength());
+			}
+			jpegBuffer.clear();
+			int length;
+			try {
+				length = scaledEncoder.apply(scaledBuffer.duplicate(), jpegBuffer);
+			} catch (BufferOverflowException e) {
+				jpegBuffer = ByteBuffer.allocateDirect(jpegBuffer.capacity() * 2);
+				length = scaledEncoder.apply(scaledBuffer.duplicate(), jpegBuffer);
+			}
+			jpegBuffer.limit(length);
+			jpegBuffer.position(0);
+			return jpegBuffer;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			nextEncodeTime = start + (long) ((System.nanoTime() - start) / MAX_DUTY_CYCLE);
+		}
+	}
+
+	/**
+	 * Subsample a raw frame into {@link #scaledBuffer}, by taking every
+	 * <var>scale</var>th pixel of every <var>scale</var>th row.
+	 */
+	protected void subsample(ByteBuffer frame) {
+		final int bpp = palette == ImagePalette.YUYV ? 2 : 3;
+		final int srcStride = sourceWidth * bpp;
+		if (frame.remaining() < srcStride * sourceHeight)
+			throw new IllegalArgumentException("Frame too small (expect: " + srcStride * sourceHeight + "; actual: " + frame.remaining() + ")");
+		if (scaledBuffer == null)
+			scaledBuffer = ByteBuffer.allocateDirect(width * height * bpp);
+		final ByteBuffer dst = scaledBuffer;
+		dst.clear();
+		final int base = frame.position();
+		for (int y = 0; y < height; y++) {
+			final int row = base + y * scale * srcStride;
+			if (palette == ImagePalette.YUYV) {
+				// Each pair of output pixels takes its lumas from two source
+				// pixels, and its chroma from the first one's pair
+				for (int x = 0; x < width; x += 2) {
+					final int p0 = row + x * scale * 2;
+					final int p1 = row + (x + 1) * scale * 2;
+					final int chroma = p0 & ~3;
+					dst.put(frame.get(p0));
+					dst.put(frame.get(chroma + 1));
+					dst.put(frame.get(p1));
+					dst.put(frame.get(chroma + 3));
+				}
+			} else {
+				for (int x = 0; x < width; x++) {
+					final int p = row + x * scale * 3;
+					dst.put(frame.get(p));
+					dst.put(frame.get(p + 1));
+					dst.put(frame.get(p + 2));
+				}
+			}
+		}
+		dst.flip();
+	}
+
+	/**
+	 * Decode a JPEG frame, scale it down, and encode it again
+	 */
+	protected ByteBuffer reencode(ByteBuffer frame) throws IOException {
+		final int length = frame.remaining();
+		if (jpegInput == null || jpegInput.length < length)
+			jpegInput = new byte[length];
+		frame.duplicate().get(jpegInput, 0, length);
+
+		if (scaledImage == null) {
+			scaledImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+			jpegReader = ImageIO.getImageReadersByFormatName("jpeg").next();
+			jpegReadParam = jpegReader.getDefaultReadParam();
+			jpegWriter = ImageIO.getImageWritersByFormatName("jpeg").next();
+			jpegParam = jpegWriter.getDefaultWriteParam();
+			jpegParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			jpegParam.setCompressionQuality(quality / 100f);
+		}
+		final BufferedImage image;
+		try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(jpegInput, 0, length))) {
+			jpegReader.setInput(in, true, true);
+			// Decode into the last frame's image, if it's the same size
+			if (decodedImage != null && (decodedImage.getWidth() != jpegReader.getWidth(0) || decodedImage.getHeight() != jpegReader.getHeight(0)))
+				decodedImage = null;
+			jpegReadParam.setDestination(decodedImage);
+			image = decodedImage = jpegReader.read(0, jpegReadParam);
+		} finally {
+			jpegReader.setInput(null);
+		}
+
+		final Graphics2D g = scaledImage.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.drawImage(image, 0, 0, width, height, null);
+		} finally {
+			g.dispose();
+		}
+
+		jpegOutput.reset();
+		try (ImageOutputStream out = ImageIO.createImageOutputStream(jpegOutput)) {
+			jpegWriter.setOutput(out);
+			jpegWriter.write(null, new IIOImage(scaledImage, null, null), jpegParam);
+		}
+		jpegBuffer = jpegOutput.copyTo(jpegBuffer);
+		return jpegBuffer;
+	}
+
+	/**
+	 * A ByteArrayOutputStream that can be copied out of without making a new
+	 * array every time
+	 */
+	protected static class JpegOutputStream extends ByteArrayOutputStream {
+		/**
+		 * Copy what's been written to a buffer
+		 * @param buffer buffer to copy to, or null
+		 * @return the buffer, flipped, or a new one if it was null or too
+		 *         small
+		 */
+		protected ByteBuffer copyTo(ByteBuffer buffer) {
+			if (buffer == null || buffer.capacity() < this.count)
+				buffer = ByteBuffer.allocateDirect(this.buf.length);
+			buffer.clear();
+			buffer.put(this.buf, 0, this.count);
+			buffer.flip();
+			return buffer;
+		}
+	}
+}
@@ -1,10 +1,11 @@
 package com.moe365.moepi.processing;
 
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 
+import com.moe365.moepi.metrics.Meter;
+import com.moe365.moepi.metrics.MetricsRegistry;
+
 import au.edu.jcu.v4l4j.VideoFrame;
 
 /**
@@ -15,6 +16,7 @@ import au.edu.jcu.v4l4j.VideoFrame;
  * @since April 2016 (v0.2.0)
  */
 public abstract class AbstractImageProcessor<R> implements Runnable, BiFunction<VideoFrame, VideoFrame, R> {
+	protected static final Meter FRAMES_PROCESSED = MetricsRegistry.getDefault().meter("moepi_frames_processed_total", "Pairs of frames that results were generated for");
 	/**
 	 * Saturate num to [0, 255]. Saturation allows us to convert an integer
 	 * to an unsigned byte. If num > 255, this method returns 255. If
@@ -51,19 +53,21 @@ public abstract class AbstractImageProcessor<R> implements Runnable, BiFunction<
 	}
 	
 	/**
-	 * Whether the processor is currently processing images. If this lock
-	 * set to true, calls to {@link #offerFrame(VideoFrame, boolean)} should
-	 * do nothing and return false.
-	 */
-	protected final AtomicBoolean imageLock = new AtomicBoolean(false);
-	/**
-	 * A frame where the flash is off.
+	 * Get the time that a frame was captured at.
+	 * @param frame frame
+	 * @return capture time, in microseconds, on the same clock as {@link System#nanoTime()}
 	 */
-	protected final AtomicReference<VideoFrame> frameOff = new AtomicReference<>();
+	public static long getCaptureTime(VideoFrame frame) {
+		long timestamp = frame.getCaptureTime();
+		if (timestamp < 0)
+			timestamp = Integer.toUnsignedLong((int) timestamp);
+		return timestamp;
+	}
+	
 	/**
-	 * A frame where the flash is on.
+	 * Passes frames from the capture thread to the processor thread
 	 */
-	protected final AtomicReference<VideoFrame> frameOn = new AtomicReference<>();
+	protected final FrameExchanger frames = new FrameExchanger();
 	/**
 	 * The minimum valid X coordinate
 	 */
@@ -74,6 +78,12 @@ public abstract class AbstractImageProcessor<R> implements Runnable, BiFunction<
 	protected Thread thread;
 	/**
 	 * A method to do something with the results.
+	 * <p>
+	 * Processors may reuse their results (and anything in them) for the next
+	 * frame, so a result is only valid until the consumer returns. Consumers
+	 * that keep anything from it for later must copy it; see
+	 * {@link com.moe365.moepi.geom.PreciseRectangle#immutableCopy()}.
+	 * </p>
 	 */
 	protected Consumer<R> resultConsumer;
 	protected AbstractImageProcessor(int frameMinX, int frameMinY, int frameMaxX, int frameMaxY, Consumer<R> output) {
@@ -101,26 +111,26 @@ public abstract class AbstractImageProcessor<R> implements Runnable, BiFunction<
 	}
 	
 	/**
-	 * Stop this processor from processing more images
+	 * Stop this processor from processing more images. The frame being
+	 * processed (if any) is finished first.
 	 */
-	@SuppressWarnings("deprecation")
 	public void stop() {
-		thread.stop();
+		thread.interrupt();
 	}
 	/**
 	 * Offer a frame. Any VideoFrame passed into this method should be treated as if recycle() has been called on it.
+	 * <p>
+	 * If the processor is busy, the frame is held until it's done (replacing
+	 * any older frame that was waiting), so the next pair processed is always
+	 * the newest one.
+	 * </p>
 	 * @param frame VideoFrame offered
-	 * @param flash whether the flash was on when this frame was captured
+	 * @param flash the new state of the flash after this frame was captured
+	 *            (i.e., true if the flash was <em>off</em> for this frame)
 	 * @return whether the frame was used
 	 */
 	public boolean offerFrame(VideoFrame frame, boolean flash) {
-		if (imageLock.get()) {
-			frame.recycle();
-			return false;
-		}
-		VideoFrame oldFrame = (flash ? frameOff : frameOn).getAndSet(frame);
-		if (oldFrame != null)
-			oldFrame.recycle();
+		frames.offer(frame, !flash);
 		return true;
 	}
 	/**
@@ -139,43 +149,51 @@ public abstract class AbstractImageProcessor<R> implements Runnable, BiFunction<
 	public void run() {
 		try {
 			while (!Thread.interrupted()) {
-				while (frameOff.get() == null || frameOn.get() == null) {
-					Thread.yield();
+				//Wait for a pair of frames
+				try {
+					frames.awaitPair();
+				} catch (InterruptedException e) {
+					break;
 				}
 				
-				//Attempt to lock image writes
-				if (!imageLock.compareAndSet(false, true))
-					throw new IllegalMonitorStateException("Did you start the thread multiple times?");
+				R result;
+				final long captureTime = getCaptureTime(frames.getFrameOn());
 				try {
-					//check again, just to be safe
-					if (frameOff.get() != null && frameOn.get() != null) {
-						R result;
-						try {
-							result = apply(frameOn.get(), frameOff.get());
-						} catch(ArrayIndexOutOfBoundsException | NullPointerException e) {
-							//These exceptions can probably be recovered from.
-							e.printStackTrace();
-							continue;
-						}
-						if (this.resultConsumer != null)
-							this.resultConsumer.accept(result);
-						
-						//release the processed frames
-						frameOff.getAndSet(null).recycle();
-						frameOn.getAndSet(null).recycle();
-					}
+					result = apply(frames.getFrameOn(), frames.getFrameOff());
+				} catch(ArrayIndexOutOfBoundsException | NullPointerException e) {
+					//These exceptions can probably be recovered from.
+					e.printStackTrace();
+					continue;
 				} finally {
-					//release the lock on images
-					if (!imageLock.compareAndSet(true, false))
-						throw new IllegalStateException();
+					//release the processed frames
+					frames.releasePair();
 				}
+				FRAMES_PROCESSED.inc();
+				publish(result, captureTime);
 			}
 		} catch (Exception e) {
 			//be sure to print any/all exceptions
 			e.printStackTrace();
 			throw e;
+		} finally {
+			frames.clear();
 		}
 	}
+	/**
+	 * Pass a result to the result consumer, with its capture time if the
+	 * consumer wants it
+	 * @param result result to publish
+	 * @param captureTime when the frames that the result came from were
+	 *            captured, in microseconds
+	 * @see TimedResultConsumer
+	 */
+	@SuppressWarnings("unchecked")
+	protected void publish(R result, long captureTime) {
+		if (this.resultConsumer instanceof TimedResultConsumer)
+			((TimedResultConsumer<R>) this.resultConsumer).accept(result, captureTime, System.nanoTime() / 1000 - captureTime);
+		else if (this.resultConsumer != null)
+			this.resultConsumer.accept(result);
+	}
 	/**
 	 * Internal method to process the two frames.
 	 * @param frameOn A frame that was taken with a flash
@@ -0,0 +1,202 @@
+package com.moe365.moepi.processing;
+
+import java.util.Arrays;
+
+/**
+ * A {@link BinaryImage} that stores one bit per pixel, packed into a flat
+ * <code>long[]</code>.
+ * <p>
+ * Each row starts on a word boundary, so a row is <code>ceil(width / 64)</code>
+ * words long, and bit <var>i</var> of word <var>j</var> in a row is the pixel at
+ * <code>x = 64 * j + i</code>. This lets {@link #testRow(int, int, int)} check
+ * 64 pixels at a time.
+ * </p>
+ * <p>
+ * A column-major copy of the image is kept as well, so that
+ * {@link #testCol(int, int, int)} can do the same. It is rebuilt lazily from
+ * the rows the first time that a column is queried after the image is
+ * modified, so it costs nothing for users that only scan rows. Because of
+ * this, the image may be written to from multiple threads (as long as they
+ * write to different rows), but should only be queried from one.
+ * </p>
+ * <p>
+ * Testing pixels outside of the image is undefined.
+ * </p>
+ * @author mailmindlin
+ */
+public class BitPackedBinaryImage implements MutableBinaryImage {
+	protected final int width;
+	protected final int height;
+	/**
+	 * Number of words used to store each row
+	 */
+	protected final int wordsPerRow;
+	/**
+	 * Number of words used to store each column
+	 */
+	protected final int wordsPerCol;
+	/**
+	 * Row-major bits
+	 */
+	protected final long[] rows;
+	/**
+	 * Column-major bits. Only valid if {@link #colsValid} is true.
+	 */
+	protected final long[] cols;
+	/**
+	 * Whether {@link #cols} is in sync with {@link #rows}. Not volatile, since
+	 * it's written for every word set; masks are handed between threads by
+	 * the processor, which already orders these writes.
+	 */
+	protected boolean colsValid = true;
+
+	public BitPackedBinaryImage(int width, int height) {
+		if (width < 0 || height < 0)
+			throw new IllegalArgumentException("Invalid dimensions " + width + "x" + height);
+		this.width = width;
+		this.height = height;
+		this.wordsPerRow = (width + 63) >>> 6;
+		this.wordsPerCol = (height + 63) >>> 6;
+		this.rows = new long[wordsPerRow * height];
+		this.cols = new long[wordsPerCol * width];
+	}
+
+	@Override
+	public int getWidth() {
+		return this.width;
+	}
+
+	@Override
+	public int getHeight() {
+		return this.height;
+	}
+
+	/**
+	 * @return the number of words that each row is stored in
+	 */
+	public int getWordsPerRow() {
+		return this.wordsPerRow;
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(this.rows, 0L);
+		Arrays.fill(this.cols, 0L);
+		this.colsValid = true;
+	}
+
+	@Override
+	public void set(int x, int y) {
+		this.rows[y * wordsPerRow + (x >>> 6)] |= 1L << x;
+		if (this.colsValid)
+			this.colsValid = false;
+	}
+
+	@Override
+	public void setWord(int y, int wordIndex, long bits) {
+		this.rows[y * wordsPerRow + wordIndex] = bits;
+		if (this.colsValid)
+			this.colsValid = false;
+	}
+
+	/**
+	 * Get 64 pixels of a row at once.
+	 * @see #setWord(int, int, long)
+	 */
+	public long getWord(int y, int wordIndex) {
+		return this.rows[y * wordsPerRow + wordIndex];
+	}
+
+	@Override
+	public boolean test(int x, int y) {
+		return (this.rows[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+	}
+
+	@Override
+	public boolean testRow(int y, int xMin, int xMax) {
+		return xMin < xMax && scan(this.rows, y * wordsPerRow, xMin, xMax) >= 0;
+	}
+
+	@Override
+	public boolean testCol(int x, int yMin, int yMax) {
+		if (yMin >= yMax)
+			return false;
+		updateColumns();
+		return scan(this.cols, x * wordsPerCol, yMin, yMax) >= 0;
+	}
+
+	/**
+	 * Find the first set pixel in a row
+	 * @param y row to search
+	 * @param xMin leftmost column to search (inclusive)
+	 * @param xMax rightmost column to search (exclusive)
+	 * @return the x coordinate of the first set pixel in the range, or -1 if none are set
+	 */
+	public int nextSetBitInRow(int y, int xMin, int xMax) {
+		if (xMin >= xMax)
+			return -1;
+		return scan(this.rows, y * wordsPerRow, xMin, xMax);
+	}
+
+	/**
+	 * Find the first set pixel in a column
+	 * @param x column to search
+	 * @param yMin top row to search (inclusive)
+	 * @param yMax bottom row to search (exclusive)
+	 * @return the y coordinate of the first set pixel in the range, or -1 if none are set
+	 */
+	public int nextSetBitInCol(int x, int yMin, int yMax) {
+		if (yMin >= yMax)
+			return -1;
+		updateColumns();
+		return scan(this.cols, x * wordsPerCol, yMin, yMax);
+	}
+
+	/**
+	 * Find the index of the first set bit in <code>[min, max)</code>, in the
+	 * line of bits starting at words[base].
+	 * @return index of the first set bit, or -1
+	 */
+	protected static int scan(final long[] words, final int base, final int min, final int max) {
+		final int first = min >>> 6;
+		final int last = (max - 1) >>> 6;
+		// -1L << min keeps bits >= (min % 64); -1L >>> -max keeps bits < (max % 64), or all if max % 64 == 0
+		long word = words[base + first] & (-1L << min);
+		if (first == last) {
+			word &= -1L >>> -max;
+			return word == 0 ? -1 : ((first << 6) + Long.numberOfTrailingZeros(word));
+		}
+		if (word != 0)
+			return (first << 6) + Long.numberOfTrailingZeros(word);
+		for (int i = first + 1; i < last; i++)
+			if ((word = words[base + i]) != 0)
+				return (i << 6) + Long.numberOfTrailingZeros(word);
+		word = words[base + last] & (-1L >>> -max);
+		return word == 0 ? -1 : ((last << 6) + Long.numberOfTrailingZeros(word));
+	}
+
+	/**
+	 * Rebuild the column-major bits, if they're out of date.
+	 */
+	protected void updateColumns() {
+		if (this.colsValid)
+			return;
+		final long[] rows = this.rows, cols = this.cols;
+		Arrays.fill(cols, 0L);
+		for (int y = 0; y < height; y++) {
+			final int rowBase = y * wordsPerRow;
+			final int colWord = y >>> 6;
+			final long colBit = 1L << y;
+			for (int i = 0; i < wordsPerRow; i++) {
+				long word = rows[rowBase + i];
+				while (word != 0) {
+					final int x = (i << 6) + Long.numberOfTrailingZeros(word);
+					cols[x * wordsPerCol + colWord] |= colBit;
+					// Clear lowest set bit
+					word &= word - 1;
+				}
+			}
+		}
+		this.colsValid = true;
+	}
+}
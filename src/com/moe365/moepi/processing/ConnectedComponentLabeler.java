@@ -0,0 +1,341 @@
+package com.moe365.moepi.processing;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.moe365.moepi.geom.ComponentRectangle;
+import com.moe365.moepi.geom.PreciseRectangle;
+
+/**
+ * Finds the 8-connected components (blobs) in a mask, with a two-scan
+ * union-find labeling over runs of set pixels.
+ * <ol>
+ * <li>Each row is split into runs of set pixels (for a
+ * {@link BitPackedBinaryImage}, 64 pixels at a time, and for a
+ * {@link RunLengthBinaryImage}, the runs are just copied). Each run is given the
+ * label of the runs it touches in the row above, merging their labels if it
+ * touches more than one, or a new label if it doesn't touch any.</li>
+ * <li>Every run's label is resolved to the root of its set, and the run is
+ * added to that root's bounding box, pixel count and centroid sums.</li>
+ * </ol>
+ * Both scans are linear in the number of pixels (the first) and runs (the
+ * second), no matter how cluttered the mask is, and nothing is scanned twice.
+ * <p>
+ * Storage is reused between frames, and grows to fit the most runs seen in a
+ * frame, which is at most <code>ceil(width / 2) * height</code>.
+ * Labelers are <strong>not</strong> thread safe, and the rectangles returned
+ * are only valid until the next call to {@link #label(BinaryImage, int, int, int, int, List)}
+ * or {@link #reset()}.
+ * </p>
+ * @author mailmindlin
+ */
+public class ConnectedComponentLabeler {
+	protected static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * Leftmost pixel of each run
+	 */
+	protected int[] runX0 = new int[INITIAL_CAPACITY];
+	/**
+	 * Rightmost pixel of each run (inclusive)
+	 */
+	protected int[] runX1 = new int[INITIAL_CAPACITY];
+	/**
+	 * Row of each run
+	 */
+	protected int[] runY = new int[INITIAL_CAPACITY];
+	/**
+	 * Label of each run, as of when it was labeled
+	 */
+	protected int[] runLabel = new int[INITIAL_CAPACITY];
+	protected int numRuns = 0;
+
+	/**
+	 * Union-find forest of labels. Roots are their own parent, and every label's
+	 * parent is less than or equal to it.
+	 */
+	protected int[] parent = new int[INITIAL_CAPACITY];
+	protected int numLabels = 0;
+
+	// Statistics of each root label
+	protected int[] minX = new int[INITIAL_CAPACITY];
+	protected int[] maxX = new int[INITIAL_CAPACITY];
+	protected int[] minY = new int[INITIAL_CAPACITY];
+	protected int[] maxY = new int[INITIAL_CAPACITY];
+	protected long[] pixelCount = new long[INITIAL_CAPACITY];
+	protected long[] sumX = new long[INITIAL_CAPACITY];
+	protected long[] sumY = new long[INITIAL_CAPACITY];
+
+	/**
+	 * Rectangles handed out, reused between frames
+	 */
+	protected ComponentRectangle[] components = new ComponentRectangle[16];
+	/**
+	 * Number of rectangles handed out since the last reset
+	 */
+	protected int numComponents = 0;
+
+	/**
+	 * Release all rectangles handed out.
+	 */
+	public void reset() {
+		this.numComponents = 0;
+	}
+
+	/**
+	 * Find the components in a mask.
+	 * <p>
+	 * The bounding boxes are in pixels, and use the same convention as
+	 * {@link ImageProcessor#boundingBox(BinaryImage, ProcessingArena, int, int, int, int) ImageProcessor.boundingBox}
+	 * (the width is the distance between the leftmost and rightmost pixels), so
+	 * the two are interchangeable.
+	 * </p>
+	 * @param img mask
+	 * @param width width of the region of the mask to search
+	 * @param height height of the region of the mask to search
+	 * @param minWidth smallest width of a component to report
+	 * @param minHeight smallest height of a component to report
+	 * @param results list to add {@link ComponentRectangle}s to, in no particular order
+	 * @return whether any components were found
+	 */
+	public boolean label(BinaryImage img, int width, int height, int minWidth, int minHeight, List<PreciseRectangle> results) {
+		reset();
+		return labelRegion(img, 0, 0, width, height, minWidth, minHeight, results);
+	}
+
+	/**
+	 * Find the components in a region of a mask. Components are cut off at the
+	 * edges of the region.
+	 * <p>
+	 * Unlike {@link #label(BinaryImage, int, int, int, int, List)}, this
+	 * doesn't release the rectangles from earlier calls, so several regions
+	 * can be labeled for the same frame. Call {@link #reset()} between frames.
+	 * </p>
+	 * @param xMin left edge of the region (inclusive)
+	 * @param yMin top edge of the region (inclusive)
+	 * @param xMax right edge of the region (exclusive)
+	 * @param yMax bottom edge of the region (exclusive)
+	 * @see #label(BinaryImage, int, int, int, int, List)
+	 */
+	public boolean labelRegion(BinaryImage img, int xMin, int yMin, int xMax, int yMax, int minWidth, int minHeight, List<PreciseRectangle> results) {
+		this.numRuns = 0;
+		this.numLabels = 0;
+		if (xMin >= xMax)
+			return false;
+
+		// First scan: find runs, and label them
+		int prevStart = 0, prevEnd = 0;
+		for (int y = yMin; y < yMax; y++) {
+			final int rowStart = numRuns;
+			if (img instanceof RunLengthBinaryImage)
+				findRuns((RunLengthBinaryImage) img, y, xMin, xMax);
+			else if (img instanceof BitPackedBinaryImage)
+				findRuns((BitPackedBinaryImage) img, y, xMin, xMax);
+			else
+				findRuns(img, y, xMin, xMax);
+			labelRow(prevStart, prevEnd, rowStart, numRuns);
+			prevStart = rowStart;
+			prevEnd = numRuns;
+		}
+
+		// Second scan: add each run to its root's statistics
+		for (int i = 0; i < numRuns; i++) {
+			final int root = find(runLabel[i]);
+			final int x0 = runX0[i], x1 = runX1[i], y = runY[i];
+			final int length = x1 - x0 + 1;
+			if (x0 < minX[root])
+				minX[root] = x0;
+			if (x1 > maxX[root])
+				maxX[root] = x1;
+			if (y < minY[root])
+				minY[root] = y;
+			if (y > maxY[root])
+				maxY[root] = y;
+			pixelCount[root] += length;
+			// Sum of x0..x1
+			sumX[root] += (long) (x0 + x1) * length / 2;
+			sumY[root] += (long) y * length;
+		}
+
+		boolean found = false;
+		for (int label = 0; label < numLabels; label++) {
+			if (parent[label] != label)
+				continue;
+			final int w = maxX[label] - minX[label];
+			final int h = maxY[label] - minY[label];
+			if (w < minWidth || h < minHeight)
+				continue;
+			final long count = pixelCount[label];
+			ComponentRectangle component = nextComponent(numComponents++);
+			component.set(minX[label], minY[label], w, h);
+			component.setStats((int) count, sumX[label] / (double) count, sumY[label] / (double) count, count / ((w + 1.0) * (h + 1.0)));
+			results.add(component);
+			found = true;
+		}
+		return found;
+	}
+
+	/**
+	 * Copy the runs of a row of a run-length encoded mask
+	 */
+	protected void findRuns(RunLengthBinaryImage img, int y, int xMin, int xMax) {
+		final int[] runs = img.getRuns(y);
+		final int count = img.getRunCount(y);
+		for (int i = 0; i < count; i++) {
+			final int start = runs[i * 2], end = runs[i * 2 + 1];
+			if (start >= xMax)
+				break;
+			if (end > xMin)
+				addRun(Math.max(start, xMin), Math.min(end, xMax) - 1, y);
+		}
+	}
+
+	/**
+	 * Find the runs in a row of a bit-packed mask, 64 pixels at a time.
+	 */
+	protected void findRuns(BitPackedBinaryImage img, int y, int xMin, int xMax) {
+		final int first = xMin >>> 6, last = (xMax - 1) >>> 6;
+		// Start of the run that we're in, or -1
+		int start = -1;
+		for (int i = first; i <= last; i++) {
+			long word = img.getWord(y, i);
+			if (i == first)
+				word &= -1L << xMin;
+			if (i == last)
+				word &= -1L >>> -xMax;
+			final int base = i << 6;
+			int bit = 0;
+			while (bit < 64) {
+				if (start < 0) {
+					// Look for the start of a run
+					final long remaining = word & (-1L << bit);
+					if (remaining == 0)
+						break;
+					bit = Long.numberOfTrailingZeros(remaining);
+					start = base + bit;
+				} else {
+					// Look for the end of the run
+					final long remaining = ~word & (-1L << bit);
+					if (remaining == 0)
+						break;
+					bit = Long.numberOfTrailingZeros(remaining);
+					addRun(start, base + bit - 1, y);
+					start = -1;
+				}
+			}
+		}
+		if (start >= 0)
+			addRun(start, xMax - 1, y);
+	}
+
+	/**
+	 * Find the runs in a row of any mask, one pixel at a time.
+	 */
+	protected void findRuns(BinaryImage img, int y, int xMin, int xMax) {
+		int start = -1;
+		for (int x = xMin; x < xMax; x++) {
+			if (img.test(x, y)) {
+				if (start < 0)
+					start = x;
+			} else if (start >= 0) {
+				addRun(start, x - 1, y);
+				start = -1;
+			}
+		}
+		if (start >= 0)
+			addRun(start, xMax - 1, y);
+	}
+
+	protected void addRun(int x0, int x1, int y) {
+		if (numRuns == runX0.length) {
+			final int capacity = numRuns * 2;
+			runX0 = Arrays.copyOf(runX0, capacity);
+			runX1 = Arrays.copyOf(runX1, capacity);
+			runY = Arrays.copyOf(runY, capacity);
+			runLabel = Arrays.copyOf(runLabel, capacity);
+		}
+		runX0[numRuns] = x0;
+		runX1[numRuns] = x1;
+		runY[numRuns] = y;
+		numRuns++;
+	}
+
+	/**
+	 * Label the runs of a row, given the runs of the row above it. Runs are
+	 * connected if they overlap, or touch diagonally.
+	 */
+	protected void labelRow(final int prevStart, final int prevEnd, final int rowStart, final int rowEnd) {
+		int j = prevStart;
+		for (int i = rowStart; i < rowEnd; i++) {
+			final int x0 = runX0[i], x1 = runX1[i];
+			// Skip runs above that end before this one starts
+			while (j < prevEnd && runX1[j] + 1 < x0)
+				j++;
+			int label = -1;
+			// Merge the labels of all runs above that touch this one. The last
+			// one may touch the next run too, so j isn't advanced past it.
+			for (int k = j; k < prevEnd && runX0[k] <= x1 + 1; k++) {
+				final int other = find(runLabel[k]);
+				if (label < 0) {
+					label = other;
+				} else if (other != label) {
+					// Keep the smaller label as the root
+					if (other < label) {
+						parent[label] = other;
+						label = other;
+					} else {
+						parent[other] = label;
+					}
+				}
+			}
+			if (label < 0)
+				label = newLabel();
+			runLabel[i] = label;
+		}
+	}
+
+	protected int newLabel() {
+		if (numLabels == parent.length) {
+			final int capacity = numLabels * 2;
+			parent = Arrays.copyOf(parent, capacity);
+			minX = Arrays.copyOf(minX, capacity);
+			maxX = Arrays.copyOf(maxX, capacity);
+			minY = Arrays.copyOf(minY, capacity);
+			maxY = Arrays.copyOf(maxY, capacity);
+			pixelCount = Arrays.copyOf(pixelCount, capacity);
+			sumX = Arrays.copyOf(sumX, capacity);
+			sumY = Arrays.copyOf(sumY, capacity);
+		}
+		final int label = numLabels++;
+		parent[label] = label;
+		minX[label] = Integer.MAX_VALUE;
+		maxX[label] = Integer.MIN_VALUE;
+		minY[label] = Integer.MAX_VALUE;
+		maxY[label] = Integer.MIN_VALUE;
+		pixelCount[label] = 0;
+		sumX[label] = 0;
+		sumY[label] = 0;
+		return label;
+	}
+
+	/**
+	 * Find the root of a label, halving the path to it along the way
+	 */
+	protected int find(int label) {
+		final int[] parent = this.parent;
+		while (parent[label] != label) {
+			parent[label] = parent[parent[label]];
+			label = parent[label];
+		}
+		return label;
+	}
+
+	protected ComponentRectangle nextComponent(int index) {
+		if (index == components.length)
+			components = Arrays.copyOf(components, index * 2);
+		ComponentRectangle result = components[index];
+		if (result == null)
+			components[index] = result = new ComponentRectangle();
+		return result;
+	}
+}
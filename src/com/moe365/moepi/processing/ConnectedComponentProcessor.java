@@ -0,0 +1,42 @@
+package com.moe365.moepi.processing;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.moe365.moepi.geom.PreciseRectangle;
+
+/**
+ * An {@link ImageProcessor} that finds blobs with a
+ * {@link ConnectedComponentLabeler}, instead of by recursively splitting the
+ * mask.
+ * <p>
+ * Recursive splitting rescans rows and columns every time that it splits, so
+ * in cluttered scenes its cost grows with the number of splits times the area
+ * being split. Labeling looks at every pixel once, so its cost only depends on
+ * the size of the frame. It also finds the exact bounds of each blob, and
+ * the results are {@link com.moe365.moepi.geom.ComponentRectangle
+ * ComponentRectangle}s, which have the pixel count, centroid and fill ratio of
+ * each blob as well.
+ * </p>
+ * @author mailmindlin
+ */
+public class ConnectedComponentProcessor extends ImageProcessor {
+	protected final ConnectedComponentLabeler labeler = new ConnectedComponentLabeler();
+
+	public ConnectedComponentProcessor(int frameWidth, int frameHeight, int minBlobWidth, int minBlobHeight, DiffGenerator diff, Consumer<List<PreciseRectangle>> handler) {
+		super(frameWidth, frameHeight, minBlobWidth, minBlobHeight, diff, handler);
+	}
+
+	/**
+	 * The labeler works on runs, so have the diff generate them directly
+	 */
+	@Override
+	protected MutableBinaryImage getDiffMask(ProcessingArena arena) {
+		return arena.getRunLengthMask(0);
+	}
+
+	@Override
+	protected void findRectangles(ProcessingArena arena, BinaryImage processed, int w, int h) {
+		labeler.label(processed, w, h, minBlobWidth, minBlobHeight, arena.getResults());
+	}
+}
@@ -28,6 +28,11 @@ public class ContourTracer extends AbstractImageProcessor<List<Polygon>> {
 	protected double stepSize = 4.0;
 	public static final int minGreenTolerance = 70;
 	public static final int maxRedTolerance = 70;
+	/**
+	 * Storage reused for every frame
+	 */
+	protected final ProcessingArena arena = new ProcessingArena(getFrameWidth(), getFrameHeight());
+	protected final LazyDiff lazyDiff = new LazyDiff();
 	public ContourTracer(int width, int height) throws IllegalArgumentException {
 		this(width, height, null);
 	}
@@ -45,23 +50,53 @@ public class ContourTracer extends AbstractImageProcessor<List<Polygon>> {
 	}
 	@Override
 	public List<Polygon> apply(VideoFrame frameOn, VideoFrame frameOff) {
-		BufferedImage imgOn = frameOn.getBufferedImage();
-		BufferedImage imgOff = frameOff.getBufferedImage();
-		final boolean[][] processed = new boolean[getFrameHeight()][getFrameWidth()];
-		final boolean[][] cache = new boolean[getFrameHeight()][getFrameWidth()];
+		this.lazyDiff.reset(frameOn.getBufferedImage(), frameOff.getBufferedImage());
 		//System.out.println("Starting pass1");
-		List<Polygon> result = tracePass1((x, y) -> {
-			if (processed[y][x])
-				return cache[y][x];
-			processed[y][x] = true;
-			int pxOn  = imgOn.getRGB(x, y);
-			int pxOff = imgOff.getRGB(x, y);
-			return cache[y][x] = ((pxOn >> 8) & 0xFF) - ((pxOff >> 8) & 0xFF) > minGreenTolerance && ((pxOn >> 16) & 0xFF) - ((pxOff >> 16) & 0xFF) < maxRedTolerance;
-		});
+		List<Polygon> result = tracePass1(this.lazyDiff);
 		//System.out.println("(done)");
 		return result;
 	}
 	
+	/**
+	 * A diff that only calculates pixels when they're tested, caching the
+	 * results. It (and its masks) are reused for every frame.
+	 */
+	protected class LazyDiff implements BinaryImage {
+		/**
+		 * Whether a pixel has been calculated
+		 */
+		protected final BitPackedBinaryImage processed = arena.getMask(0);
+		/**
+		 * The value of each calculated pixel
+		 */
+		protected final BitPackedBinaryImage cache = arena.getMask(1);
+		protected BufferedImage imgOn, imgOff;
+		
+		/**
+		 * Start diffing a new pair of frames
+		 */
+		protected void reset(BufferedImage imgOn, BufferedImage imgOff) {
+			this.imgOn = imgOn;
+			this.imgOff = imgOff;
+			processed.clear();
+			cache.clear();
+		}
+		
+		@Override
+		public boolean test(int x, int y) {
+			if (processed.test(x, y))
+				return cache.test(x, y);
+			processed.set(x, y);
+			int pxOn  = imgOn.getRGB(x, y);
+			int pxOff = imgOff.getRGB(x, y);
+			if (((pxOn >> 8) & 0xFF) - ((pxOff >> 8) & 0xFF) > minGreenTolerance && ((pxOn >> 16) & 0xFF) - ((pxOff >> 16) & 0xFF) < maxRedTolerance) {
+				cache.set(x, y);
+				return true;
+			}
+			return false;
+		}
+	}
+	
 	protected List<Polygon> tracePass1(BinaryImage image) {
 		List<Polygon> blobs = new LinkedList<Polygon>();
 		List<PreciseRectangle> bounds = new LinkedList<>();
@@ -117,9 +152,14 @@ public class ContourTracer extends AbstractImageProcessor<List<Polygon>> {
 		System.out.println("Pass2: " + blob);
 		final PointNode startingPoint = blob.getStartingPoint();
 		PointNode pointA = startingPoint, pointB = pointA.next();
+		// Refining doesn't always converge (e.g., on noisy edges), so limit how many points we add
+		int pointBudget = 4 * (getFrameWidth() + getFrameHeight());
 		while (true) {
 			// Use distance^2, because x^2 < r^2 if x < r, and x^2 > r^2 if x > r, and it's faster, because no sqrt operations.
 			if (pointA.equals(pointB)) {
+				if (pointA == pointB)
+					// The polygon has collapsed to a single point
+					break;
 				pointA.removeNext();
 			} else if (pointA.getDistanceSquared(pointB) > maxSegmentLength * maxSegmentLength) {
 				// point A and B are >r px apart
@@ -168,6 +208,8 @@ public class ContourTracer extends AbstractImageProcessor<List<Polygon>> {
 					midpointX -= stepX;
 					midpointY -= stepY;
 				}
+				if (--pointBudget < 0)
+					break;
 				pointB = pointA.insertNext(midpointX, midpointY);
 			} else {
 				if ((pointA = pointA.next()).equals(startingPoint))
@@ -19,30 +19,42 @@ public class DebuggingDiffGenerator extends DiffGenerator {
 	
 	@Override
 	public RichBinaryImage apply(BufferedImage onImg, BufferedImage offImg) {
-		// boolean array of the results. A cell @ result[y][x] is only
+		RichBinaryImage result = new RichBinaryImage(this.frameMaxX - this.frameMinX, this.frameMaxY - this.frameMinY, null);
+		apply(onImg, offImg, result);
+		result.diffImg = imgFlt;
+		return result;
+	}
+	
+	/**
+	 * Calculate the diff, and save it (and its components) as images. Unlike
+	 * {@link DiffGenerator}, this allocates a bunch of images for every frame.
+	 */
+	@Override
+	public <T extends MutableBinaryImage> T apply(BufferedImage onImg, BufferedImage offImg, T result) {
 		int height = this.frameMaxY - this.frameMinY;
 		int width = this.frameMaxX - this.frameMinX;
-		boolean[][] result = new boolean[height][width];
+		result.clear();
+		imgFlt = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
 		BufferedImage imgR = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
 		BufferedImage imgG = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
 		BufferedImage imgB = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-		imgFlt = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
 		
-		int[] pxOn = new int[3], pxOff = new int[3];
+		int[] rowOn = new int[width], rowOff = new int[width];
 		for (int y = frameMinY; y < frameMaxY; y++) {
 			//Y index into result array
 			final int idxY = y - frameMinY;
+			DiffGenerator.getRGBRow(onImg, frameMinX, y, width, rowOn);
+			DiffGenerator.getRGBRow(offImg, frameMinX, y, width, rowOff);
 			for (int x = frameMinX; x < frameMaxX; x++) {
 				//X index into result array
 				final int idxX = x - frameMinX;
 				
-				AbstractImageProcessor.splitRGB(onImg.getRGB(x, y), pxOn);
-				AbstractImageProcessor.splitRGB(offImg.getRGB(x, y), pxOff);
-				int dR = pxOn[0] - pxOff[0];
-				int dG =  pxOn[1] - pxOff[1];
-				int dB =  pxOn[2] - pxOff[2];
-				if (dG > tolerance && (dR < dG - 10 || dR < tolerance)) {//TODO fix
-					result[idxY][idxX] = true;
+				final int pxOn = rowOn[idxX], pxOff = rowOff[idxX];
+				int dR = ((pxOn >>> 16) & 0xFF) - ((pxOff >>> 16) & 0xFF);
+				int dG = ((pxOn >> 8) & 0xFF) - ((pxOff >> 8) & 0xFF);
+				int dB = (pxOn & 0xFF) - (pxOff & 0xFF);
+				if (test(dR, dG)) {
+					result.set(idxX, idxY);
 					imgFlt.setRGB(x, y, 0xFFFFFF);
 				}
 				imgR.setRGB(x, y, AbstractImageProcessor.saturateByte(dR) << 16);
@@ -69,22 +81,15 @@ public class DebuggingDiffGenerator extends DiffGenerator {
 			e.printStackTrace();
 		}
 		
-		return new RichBinaryImage(result, imgFlt);
+		return result;
 	}
 	
-	public static class RichBinaryImage implements BinaryImage {
-		boolean[][] data;
+	public static class RichBinaryImage extends BitPackedBinaryImage {
 		BufferedImage diffImg;
 		
-		public RichBinaryImage(boolean[][] data, BufferedImage diffImg) {
-			this.data = data;
+		public RichBinaryImage(int width, int height, BufferedImage diffImg) {
+			super(width, height);
 			this.diffImg = diffImg;
 		}
-		
-		@Override
-		public boolean test(int x, int y) {
-			return this.data[y][x];
-		}
-		
 	}
 }
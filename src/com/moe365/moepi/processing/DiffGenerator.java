@@ -1,8 +1,19 @@
 package com.moe365.moepi.processing;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.util.function.BiFunction;
 
+import au.edu.jcu.v4l4j.VideoFrame;
+import au.edu.jcu.v4l4j.exceptions.UnsupportedMethod;
+
 /**
  * Calculates the difference between two frames.
  * <p>
@@ -10,6 +21,12 @@ import java.util.function.BiFunction;
  * For every pixel in the two images provided, the differences of the R, G, and B components are calculated,
  * and a heuristic is applied to them to determine if there is a real difference between the points.
  * </p>
+ * <p>
+ * When both images are {@link BufferedImage#TYPE_3BYTE_BGR TYPE_3BYTE_BGR} or
+ * {@link BufferedImage#TYPE_INT_RGB TYPE_INT_RGB}, the backing arrays of the two images are read
+ * directly, one row at a time. Otherwise, we fall back to {@link BufferedImage#getRGB(int, int)},
+ * which goes through the image's ColorModel for every pixel. Both paths generate the same mask.
+ * </p>
  * @author mailmindlin
  * @see DebuggingDiffGenerator
  * @see LazyDiffGenerator
@@ -26,38 +43,305 @@ public class DiffGenerator implements BiFunction<BufferedImage, BufferedImage, B
 		this.tolerance = tolerance;
 	}
 	
+	/**
+	 * Decide whether a pixel is on, given the change in its red and green components.
+	 * <p>
+	 * This predicate is kinda magic-y, but basically, it requires green to increase by a lot,
+	 * but red not much.
+	 * </p>
+	 * @param dR change in red
+	 * @param dG change in green
+	 * @return whether the pixel should be set in the mask
+	 */
+	protected final boolean test(int dR, int dG) {
+		return dG > tolerance && (dR < dG - 10 || dR < tolerance);//TODO fix
+	}
+
 	@Override
-	public BinaryImage apply(BufferedImage onImg, BufferedImage offImg) {
-		// boolean array of the results. A cell @ result[y][x] is only
-		boolean[][] result = new boolean[this.frameMaxY - this.frameMinY][this.frameMaxX - this.frameMinX];
-		
-		int[] pxOn = new int[3], pxOff = new int[3];
-		for (int y = frameMinY; y < frameMaxY; y++) {
-			//Y index into result array
+	public BitPackedBinaryImage apply(BufferedImage onImg, BufferedImage offImg) {
+		// Mask of the results, indexed relative to (frameMinX, frameMinY)
+		BitPackedBinaryImage result = new BitPackedBinaryImage(this.frameMaxX - this.frameMinX, this.frameMaxY - this.frameMinY);
+		return apply(onImg, offImg, result);
+	}
+
+	/**
+	 * Calculate the difference between two frames, writing it into an existing mask.
+	 * @param onImg image taken with the flash on
+	 * @param offImg image taken with the flash off
+	 * @param result mask to overwrite. Must be at least as big as the area that
+	 *            this generator diffs.
+	 * @return result
+	 */
+	public <T extends MutableBinaryImage> T apply(BufferedImage onImg, BufferedImage offImg, T result) {
+		diffRows(onImg, offImg, result, frameMinY, frameMaxY);
+		return result;
+	}
+
+	/**
+	 * Calculate the difference between two captured frames, writing it into an existing mask.
+	 * By default, this decodes both frames to BufferedImages first; generators that
+	 * understand the frames' raw format override this to skip that step.
+	 * @param frameOn frame taken with the flash on
+	 * @param frameOff frame taken with the flash off
+	 * @param result mask to overwrite
+	 * @return result
+	 * @throws UnsupportedMethod if the frames can't be decoded
+	 * @see #isRaw()
+	 */
+	public <T extends MutableBinaryImage> T apply(VideoFrame frameOn, VideoFrame frameOff, T result) throws UnsupportedMethod {
+		return apply(frameOn.getBufferedImage(), frameOff.getBufferedImage(), result);
+	}
+
+	/**
+	 * Calculate the difference between two frames in a region, writing it
+	 * into an existing mask. The region is widened to whole words (64 pixels)
+	 * of the mask, and only those words are written; the rest of the mask is
+	 * left alone.
+	 * <p>
+	 * Unlike {@link #apply(BufferedImage, BufferedImage, MutableBinaryImage)},
+	 * this writes parts of rows, so it only supports bit-packed masks.
+	 * </p>
+	 * @param onImg image taken with the flash on
+	 * @param offImg image taken with the flash off
+	 * @param result mask to write to
+	 * @param xMin left edge of the region (inclusive), in image coordinates
+	 * @param yMin top edge of the region (inclusive)
+	 * @param xMax right edge of the region (exclusive)
+	 * @param yMax bottom edge of the region (exclusive)
+	 * @return result
+	 */
+	public BitPackedBinaryImage applyRegion(BufferedImage onImg, BufferedImage offImg, BitPackedBinaryImage result, int xMin, int yMin, int xMax, int yMax) {
+		final int xStart = regionStart(xMin), xEnd = regionEnd(xMax);
+		yMin = Math.max(yMin, frameMinY);
+		yMax = Math.min(yMax, frameMaxY);
+		if (xStart < xEnd && yMin < yMax)
+			diffRows(onImg, offImg, result, xStart, xEnd, yMin, yMax);
+		return result;
+	}
+
+	/**
+	 * Calculate the difference between two captured frames in a region. By
+	 * default, this decodes both (whole) frames first.
+	 * @throws UnsupportedMethod if the frames can't be decoded
+	 * @see #applyRegion(BufferedImage, BufferedImage, BitPackedBinaryImage, int, int, int, int)
+	 */
+	public BitPackedBinaryImage applyRegion(VideoFrame frameOn, VideoFrame frameOff, BitPackedBinaryImage result, int xMin, int yMin, int xMax, int yMax) throws UnsupportedMethod {
+		return applyRegion(frameOn.getBufferedImage(), frameOff.getBufferedImage(), result, xMin, yMin, xMax, yMax);
+	}
+
+	/**
+	 * Get the first column of the mask to diff for a region, rounded down to a
+	 * word boundary
+	 * @param xMin left edge of the region, in image coordinates
+	 */
+	protected int regionStart(int xMin) {
+		return Math.max(0, xMin - frameMinX) & ~63;
+	}
+
+	/**
+	 * Get the column after the last column of the mask to diff for a region,
+	 * rounded up to a word boundary (or the edge of the mask)
+	 * @param xMax right edge of the region (exclusive), in image coordinates
+	 */
+	protected int regionEnd(int xMax) {
+		return Math.min(frameMaxX - frameMinX, (Math.max(0, xMax - frameMinX) + 63) & ~63);
+	}
+
+	/**
+	 * Whether this generator reads frames directly in
+	 * {@link #apply(VideoFrame, VideoFrame, MutableBinaryImage)}, so there's
+	 * no point in decoding them first.
+	 */
+	public boolean isRaw() {
+		return false;
+	}
+
+	/**
+	 * Compute the diff for rows <var>yMin</var> (inclusive) through <var>yMax</var> (exclusive),
+	 * picking the fastest loop that supports the given images.
+	 * @param onImg image taken with the flash on
+	 * @param offImg image taken with the flash off
+	 * @param result mask to write to, indexed relative to (frameMinX, frameMinY). Every
+	 *            word in the given rows is overwritten.
+	 * @param yMin first row (in image coordinates) to diff
+	 * @param yMax row after the last row to diff
+	 */
+	protected void diffRows(BufferedImage onImg, BufferedImage offImg, MutableBinaryImage result, int yMin, int yMax) {
+		diffRows(onImg, offImg, result, 0, frameMaxX - frameMinX, yMin, yMax);
+	}
+
+	/**
+	 * Compute the diff for part of some rows.
+	 * @param xStart first column of the mask to write. Must be a multiple of 64.
+	 * @param xEnd column after the last column of the mask to write. Must be a
+	 *            multiple of 64, or the width of the mask.
+	 * @see #diffRows(BufferedImage, BufferedImage, MutableBinaryImage, int, int)
+	 */
+	protected void diffRows(BufferedImage onImg, BufferedImage offImg, MutableBinaryImage result, int xStart, int xEnd, int yMin, int yMax) {
+		final int type = onImg.getType();
+		if (type == offImg.getType()) {
+			if (type == BufferedImage.TYPE_3BYTE_BGR && isInterleavedBGR(onImg) && isInterleavedBGR(offImg)) {
+				diffRowsBGR(onImg.getRaster(), offImg.getRaster(), result, xStart, xEnd, yMin, yMax);
+				return;
+			} else if (type == BufferedImage.TYPE_INT_RGB && isPackedRGB(onImg) && isPackedRGB(offImg)) {
+				diffRowsIntRGB(onImg.getRaster(), offImg.getRaster(), result, xStart, xEnd, yMin, yMax);
+				return;
+			}
+		}
+		diffRowsRGB(onImg, offImg, result, xStart, xEnd, yMin, yMax);
+	}
+
+	/**
+	 * Slow path, for images that aren't in a format that we know how to read directly.
+	 */
+	protected void diffRowsRGB(BufferedImage onImg, BufferedImage offImg, MutableBinaryImage result, int xStart, int xEnd, int yMin, int yMax) {
+		for (int y = yMin; y < yMax; y++) {
+			//Y index into result
 			final int idxY = y - frameMinY;
-			for (int x = frameMinX; x < frameMaxX; x++) {
-				//X index into result array
-				final int idxX = x - frameMinX;
-				
+			long word = 0;
+			for (int x = xStart; x < xEnd; x++) {
 				//Calculate deltas
-				AbstractImageProcessor.splitRGB(onImg.getRGB(x, y), pxOn);
-				AbstractImageProcessor.splitRGB(offImg.getRGB(x, y), pxOff);
-				int dR = pxOn[0] - pxOff[0];
-				int dG =  pxOn[1] - pxOff[1];
-				//int dB =  pxOn[2] - pxOff[2];
-				
-				//Decide whether the pixel is on. This predicate is kinda magic-y, but
-				//basically, it requires green to increase by a lot, but red not much.
-				if (dG > tolerance && (dR < dG - 10 || dR < tolerance))//TODO fix
-					result[idxY][idxX] = true;
+				final int pxOn = onImg.getRGB(x + frameMinX, y);
+				final int pxOff = offImg.getRGB(x + frameMinX, y);
+				int dR = ((pxOn >>> 16) & 0xFF) - ((pxOff >>> 16) & 0xFF);
+				int dG = ((pxOn >> 8) & 0xFF) - ((pxOff >> 8) & 0xFF);
+
+				if (test(dR, dG))
+					word |= 1L << x;
+				if ((x & 63) == 63) {
+					result.setWord(idxY, x >>> 6, word);
+					word = 0;
+				}
 			}
+			if ((xEnd & 63) != 0)
+				result.setWord(idxY, xEnd >>> 6, word);
 		}
-		
-		return new BinaryImage() {
-			@Override
-			public boolean test(int x, int y) {
-				return result[y][x];
+	}
+
+	/**
+	 * Diff two {@link BufferedImage#TYPE_3BYTE_BGR TYPE_3BYTE_BGR} images by reading their
+	 * backing byte arrays.
+	 */
+	protected void diffRowsBGR(WritableRaster onRaster, WritableRaster offRaster, MutableBinaryImage result, int xStart, int xEnd, int yMin, int yMax) {
+		final PixelInterleavedSampleModel onModel = (PixelInterleavedSampleModel) onRaster.getSampleModel();
+		final PixelInterleavedSampleModel offModel = (PixelInterleavedSampleModel) offRaster.getSampleModel();
+		final DataBufferByte onBuffer = (DataBufferByte) onRaster.getDataBuffer();
+		final DataBufferByte offBuffer = (DataBufferByte) offRaster.getDataBuffer();
+		final byte[] onData = onBuffer.getData();
+		final byte[] offData = offBuffer.getData();
+		final int onStride = onModel.getScanlineStride(), offStride = offModel.getScanlineStride();
+		final int onPxStride = onModel.getPixelStride(), offPxStride = offModel.getPixelStride();
+		// Band 0 is red, and band 1 is green
+		final int onR = onModel.getOffset(0, 0, 0), onG = onModel.getOffset(0, 0, 1);
+		final int offR = offModel.getOffset(0, 0, 0), offG = offModel.getOffset(0, 0, 1);
+
+		for (int y = yMin; y < yMax; y++) {
+			final int idxY = y - frameMinY;
+			int onIdx = onBuffer.getOffset() + (y - onRaster.getSampleModelTranslateY()) * onStride + (frameMinX + xStart - onRaster.getSampleModelTranslateX()) * onPxStride;
+			int offIdx = offBuffer.getOffset() + (y - offRaster.getSampleModelTranslateY()) * offStride + (frameMinX + xStart - offRaster.getSampleModelTranslateX()) * offPxStride;
+			long word = 0;
+			for (int x = xStart; x < xEnd; x++, onIdx += onPxStride, offIdx += offPxStride) {
+				int dR = (onData[onIdx + onR] & 0xFF) - (offData[offIdx + offR] & 0xFF);
+				int dG = (onData[onIdx + onG] & 0xFF) - (offData[offIdx + offG] & 0xFF);
+				if (test(dR, dG))
+					word |= 1L << x;
+				if ((x & 63) == 63) {
+					result.setWord(idxY, x >>> 6, word);
+					word = 0;
+				}
 			}
-		};
+			if ((xEnd & 63) != 0)
+				result.setWord(idxY, xEnd >>> 6, word);
+		}
+	}
+
+	/**
+	 * Diff two {@link BufferedImage#TYPE_INT_RGB TYPE_INT_RGB} images by reading their
+	 * backing int arrays.
+	 */
+	protected void diffRowsIntRGB(WritableRaster onRaster, WritableRaster offRaster, MutableBinaryImage result, int xStart, int xEnd, int yMin, int yMax) {
+		final DataBufferInt onBuffer = (DataBufferInt) onRaster.getDataBuffer();
+		final DataBufferInt offBuffer = (DataBufferInt) offRaster.getDataBuffer();
+		final int[] onData = onBuffer.getData();
+		final int[] offData = offBuffer.getData();
+		final int onStride = ((SinglePixelPackedSampleModel) onRaster.getSampleModel()).getScanlineStride();
+		final int offStride = ((SinglePixelPackedSampleModel) offRaster.getSampleModel()).getScanlineStride();
+
+		for (int y = yMin; y < yMax; y++) {
+			final int idxY = y - frameMinY;
+			int onIdx = onBuffer.getOffset() + (y - onRaster.getSampleModelTranslateY()) * onStride + (frameMinX + xStart - onRaster.getSampleModelTranslateX());
+			int offIdx = offBuffer.getOffset() + (y - offRaster.getSampleModelTranslateY()) * offStride + (frameMinX + xStart - offRaster.getSampleModelTranslateX());
+			long word = 0;
+			for (int x = xStart; x < xEnd; x++) {
+				final int pxOn = onData[onIdx++];
+				final int pxOff = offData[offIdx++];
+				int dR = ((pxOn >>> 16) & 0xFF) - ((pxOff >>> 16) & 0xFF);
+				int dG = ((pxOn >> 8) & 0xFF) - ((pxOff >> 8) & 0xFF);
+				if (test(dR, dG))
+					word |= 1L << x;
+				if ((x & 63) == 63) {
+					result.setWord(idxY, x >>> 6, word);
+					word = 0;
+				}
+			}
+			if ((xEnd & 63) != 0)
+				result.setWord(idxY, xEnd >>> 6, word);
+		}
+	}
+
+	/**
+	 * Whether we can read the raster of a TYPE_3BYTE_BGR image directly.
+	 */
+	protected static boolean isInterleavedBGR(BufferedImage img) {
+		SampleModel model = img.getSampleModel();
+		return model instanceof PixelInterleavedSampleModel
+				&& model.getNumBands() == 3
+				&& img.getRaster().getDataBuffer().getDataType() == DataBuffer.TYPE_BYTE
+				&& img.getRaster().getDataBuffer().getNumBanks() == 1;
+	}
+
+	/**
+	 * Whether we can read the raster of a TYPE_INT_RGB image directly.
+	 */
+	protected static boolean isPackedRGB(BufferedImage img) {
+		if (!(img.getSampleModel() instanceof SinglePixelPackedSampleModel && img.getColorModel() instanceof DirectColorModel))
+			return false;
+		// Not using SinglePixelPackedSampleModel#getBitMasks(), because it makes a copy
+		DirectColorModel model = (DirectColorModel) img.getColorModel();
+		return model.getRedMask() == 0xFF0000 && model.getGreenMask() == 0xFF00 && model.getBlueMask() == 0xFF
+				&& img.getRaster().getDataBuffer().getDataType() == DataBuffer.TYPE_INT;
+	}
+
+	/**
+	 * Read a row of pixels from an image into an array of RGB32 colors, reading the backing array
+	 * directly when possible.
+	 * @param img image to read from
+	 * @param xMin leftmost column to read
+	 * @param y row to read
+	 * @param width number of pixels to read
+	 * @param dst array to write colors to (size >= width)
+	 * @return dst
+	 */
+	public static int[] getRGBRow(BufferedImage img, int xMin, int y, int width, int[] dst) {
+		final WritableRaster raster = img.getRaster();
+		if (img.getType() == BufferedImage.TYPE_INT_RGB && isPackedRGB(img)) {
+			DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+			int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+			int idx = buffer.getOffset() + (y - raster.getSampleModelTranslateY()) * stride + (xMin - raster.getSampleModelTranslateX());
+			System.arraycopy(buffer.getData(), idx, dst, 0, width);
+		} else if (img.getType() == BufferedImage.TYPE_3BYTE_BGR && isInterleavedBGR(img)) {
+			PixelInterleavedSampleModel model = (PixelInterleavedSampleModel) raster.getSampleModel();
+			DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+			byte[] data = buffer.getData();
+			int pxStride = model.getPixelStride();
+			int[] bandOffsets = model.getBandOffsets();
+			int idx = buffer.getOffset() + (y - raster.getSampleModelTranslateY()) * model.getScanlineStride() + (xMin - raster.getSampleModelTranslateX()) * pxStride;
+			for (int x = 0; x < width; x++, idx += pxStride)
+				dst[x] = ((data[idx + bandOffsets[0]] & 0xFF) << 16) | ((data[idx + bandOffsets[1]] & 0xFF) << 8) | (data[idx + bandOffsets[2]] & 0xFF);
+		} else {
+			for (int x = 0; x < width; x++)
+				dst[x] = img.getRGB(xMin + x, y);
+		}
+		return dst;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,182 @@
+package com.moe365.moepi.processing;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.moe365.moepi.metrics.Counter;
+import com.moe365.moepi.metrics.Histogram;
+import com.moe365.moepi.metrics.Meter;
+import com.moe365.moepi.metrics.MetricsRegistry;
+
+import au.edu.jcu.v4l4j.VideoFrame;
+
+/**
+ * Hands pairs of on/off frames from the capture thread to a processor thread.
+ * <p>
+ * The exchanger is double-buffered: it has a <em>pending</em> pair, which the
+ * capture thread writes to, and a <em>working</em> pair, which belongs to the
+ * processor. Offering a frame replaces (and recycles) the pending frame of the
+ * same kind, so the pending pair always holds the newest frames, even while the
+ * processor is busy. {@link #awaitPair()} blocks until the pending pair is
+ * complete, then swaps it into the working pair.
+ * </p>
+ * <p>
+ * Only one thread may call {@link #awaitPair()}, {@link #getFrameOn()},
+ * {@link #getFrameOff()} and {@link #releasePair()}; any thread may call
+ * {@link #offer(VideoFrame, boolean)}.
+ * </p>
+ * @author mailmindlin
+ */
+public class FrameExchanger {
+	protected static final Meter FRAMES_OFFERED = MetricsRegistry.getDefault().meter("moepi_frames_captured_total", "Frames offered to the processor");
+	protected static final Counter FRAMES_DROPPED = MetricsRegistry.getDefault().counter("moepi_frames_replaced_total", "Frames replaced by a newer frame before the processor took them");
+	protected static final Histogram WAIT_TIME = MetricsRegistry.getDefault().histogram("moepi_capture_wait_seconds", "Time from a pair of frames being complete to the processor taking it");
+
+	protected final ReentrantLock lock = new ReentrantLock();
+	/**
+	 * Signalled when the pending pair becomes complete
+	 */
+	protected final Condition pairReady = lock.newCondition();
+	/**
+	 * Newest frame with the flash on that hasn't been taken by the processor.
+	 * Guarded by {@link #lock}.
+	 */
+	protected VideoFrame pendingOn;
+	/**
+	 * Newest frame with the flash off that hasn't been taken by the processor.
+	 * Guarded by {@link #lock}.
+	 */
+	protected VideoFrame pendingOff;
+	/**
+	 * When {@link #pendingOn} was offered, from {@link System#nanoTime()}.
+	 * Guarded by {@link #lock}.
+	 */
+	protected long pendingOnTime;
+	/**
+	 * When {@link #pendingOff} was offered. Guarded by {@link #lock}.
+	 */
+	protected long pendingOffTime;
+	/**
+	 * Frame with the flash on that the processor is working on. Only accessed
+	 * by the processor thread.
+	 */
+	protected VideoFrame workingOn;
+	/**
+	 * Frame with the flash off that the processor is working on. Only accessed
+	 * by the processor thread.
+	 */
+	protected VideoFrame workingOff;
+
+	/**
+	 * Offer a frame. If there was already a pending frame of the same kind, it
+	 * is recycled.
+	 * @param frame frame to offer
+	 * @param on whether the flash was on for the frame
+	 */
+	public void offer(VideoFrame frame, boolean on) {
+		VideoFrame old;
+		final long now = System.nanoTime();
+		FRAMES_OFFERED.inc();
+		lock.lock();
+		try {
+			if (on) {
+				old = pendingOn;
+				pendingOn = frame;
+				pendingOnTime = now;
+			} else {
+				old = pendingOff;
+				pendingOff = frame;
+				pendingOffTime = now;
+			}
+			if (pendingOn != null && pendingOff != null)
+				pairReady.signal();
+		} finally {
+			lock.unlock();
+		}
+		if (old != null) {
+			FRAMES_DROPPED.inc();
+			old.recycle();
+		}
+	}
+
+	/**
+	 * Block until there is a complete pair of pending frames, and make them
+	 * the working pair. Any working pair that wasn't released is recycled.
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public void awaitPair() throws InterruptedException {
+		releasePair();
+		lock.lockInterruptibly();
+		try {
+			while (pendingOn == null || pendingOff == null)
+				pairReady.await();
+			// The pair was complete when its newer frame was offered
+			WAIT_TIME.recordSince(Math.max(pendingOnTime, pendingOffTime));
+			workingOn = pendingOn;
+			workingOff = pendingOff;
+			pendingOn = null;
+			pendingOff = null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the working frame with the flash on
+	 */
+	public VideoFrame getFrameOn() {
+		return workingOn;
+	}
+
+	/**
+	 * @return the working frame with the flash off
+	 */
+	public VideoFrame getFrameOff() {
+		return workingOff;
+	}
+
+	/**
+	 * Recycle the working pair, if any.
+	 */
+	public void releasePair() {
+		if (workingOn != null) {
+			workingOn.recycle();
+			workingOn = null;
+		}
+		if (workingOff != null) {
+			workingOff.recycle();
+			workingOff = null;
+		}
+	}
+
+	/**
+	 * Forget the working pair without recycling it. The caller becomes
+	 * responsible for recycling the frames.
+	 */
+	public void detachPair() {
+		workingOn = null;
+		workingOff = null;
+	}
+
+	/**
+	 * Recycle all frames held by this exchanger. Should be called from the
+	 * processor thread, after it's done with the exchanger.
+	 */
+	public void clear() {
+		releasePair();
+		VideoFrame on, off;
+		lock.lock();
+		try {
+			on = pendingOn;
+			off = pendingOff;
+			pendingOn = null;
+			pendingOff = null;
+		} finally {
+			lock.unlock();
+		}
+		if (on != null)
+			on.recycle();
+		if (off != null)
+			off.recycle();
+	}
+}
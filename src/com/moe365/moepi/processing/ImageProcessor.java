@@ -1,13 +1,15 @@
 package com.moe365.moepi.processing;
 
 import java.awt.image.BufferedImage;
-import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
 
+import com.moe365.moepi.geom.MutablePreciseRectangle;
 import com.moe365.moepi.geom.PreciseRectangle;
+import com.moe365.moepi.metrics.Histogram;
+import com.moe365.moepi.metrics.MetricsRegistry;
 import com.moe365.moepi.processing.AbstractImageProcessor;
 import com.moe365.moepi.processing.BinaryImage;
 import com.moe365.moepi.processing.DebuggingDiffGenerator;
@@ -17,7 +19,15 @@ import au.edu.jcu.v4l4j.VideoFrame;
 import au.edu.jcu.v4l4j.exceptions.UnsupportedMethod;
 
 /**
- * 
+ * Finds bounding boxes of the blobs in the difference between two frames.
+ * <p>
+ * All of the per-frame storage (the diff mask, the rectangles, and the result
+ * list) comes from a {@link ProcessingArena} that is reused for every frame,
+ * so the list passed to the result consumer, and the rectangles in it, are
+ * only valid until the consumer returns. The rectangles are mutable slots
+ * typed as {@link PreciseRectangle}; copy any that need to be kept with
+ * {@link PreciseRectangle#immutableCopy()}.
+ * </p>
  * @author mailmindlin
  * @see DiffGenerator
  * @see com.moe365.moepi.processing.LazyDiffGenerator LazyDiffGenerator
@@ -26,8 +36,22 @@ public class ImageProcessor extends AbstractImageProcessor<List<PreciseRectangle
 	public static final int DEFAULT_TOLERANCE = 70;
 	public static final int DEFAULT_MAX_ZEROS_IN_A_ROW = 4;
 	
+	/**
+	 * Orders rectangles from left to right
+	 */
+	protected static final Comparator<PreciseRectangle> LEFT_TO_RIGHT = (a, b) -> (Double.compare(a.getX(), b.getX()));
+	
+	protected static final Histogram DECODE_TIME = MetricsRegistry.getDefault().histogram("moepi_decode_seconds", "Time to decode a pair of frames");
+	protected static final Histogram DIFF_TIME = MetricsRegistry.getDefault().histogram("moepi_diff_seconds", "Time to diff a pair of frames");
+	protected static final Histogram SEGMENT_TIME = MetricsRegistry.getDefault().histogram("moepi_segment_seconds", "Time to find the bounding boxes in a mask");
+	
 	public final DiffGenerator diff;
 	
+	/**
+	 * Storage reused for every frame
+	 */
+	protected final ProcessingArena arena;
+	
 	/**
 	 * Smallest allowed width of a bounding box, in pixels.
 	 * 
@@ -51,9 +75,27 @@ public class ImageProcessor extends AbstractImageProcessor<List<PreciseRectangle
 	}
 	
 	public ImageProcessor(int frameWidth, int frameHeight, int minBlobWidth, int minBlobHeight, boolean saveDiff, String saveLoc, Consumer<List<PreciseRectangle>> handler) {
+		this(frameWidth, frameHeight, minBlobWidth, minBlobHeight, createDiff(frameWidth, frameHeight, saveDiff, saveLoc), handler);
+	}
+	
+	/**
+	 * Create a processor that uses the given diff generator
+	 * @param diff Diff generator. Must cover (0, 0) to (frameWidth, frameHeight).
+	 */
+	public ImageProcessor(int frameWidth, int frameHeight, int minBlobWidth, int minBlobHeight, DiffGenerator diff, Consumer<List<PreciseRectangle>> handler) {
 		super(0, 0, frameWidth, frameHeight, handler);
 		
-//		this.diff = new LazyDiffGenerator(0, 0, frameWidth, frameHeight, DEFAULT_TOLERANCE);
+		this.diff = diff;
+		this.minBlobWidth = minBlobWidth;
+		this.minBlobHeight = minBlobHeight;
+		this.arena = new ProcessingArena(frameWidth, frameHeight);
+	}
+	
+	/**
+	 * Create the default diff generator for a processor
+	 */
+	public static DiffGenerator createDiff(int frameWidth, int frameHeight, boolean saveDiff, String saveLoc) {
+//		return new LazyDiffGenerator(0, 0, frameWidth, frameHeight, DEFAULT_TOLERANCE);
 		if (saveDiff) {
 			if(saveLoc == null) {
 				saveLoc = "img";
@@ -61,13 +103,9 @@ public class ImageProcessor extends AbstractImageProcessor<List<PreciseRectangle
 
 			System.out.println("Saving Diff images to folder " + saveLoc);
 			
-			this.diff = new DebuggingDiffGenerator(0, 0, frameWidth, frameHeight, DEFAULT_TOLERANCE, saveLoc);
-		} else {
-			this.diff = new DiffGenerator(0, 0, frameWidth, frameHeight, DEFAULT_TOLERANCE);
+			return new DebuggingDiffGenerator(0, 0, frameWidth, frameHeight, DEFAULT_TOLERANCE, saveLoc);
 		}
-		
-		this.minBlobWidth = minBlobWidth;
-		this.minBlobHeight = minBlobHeight;
+		return new DiffGenerator(0, 0, frameWidth, frameHeight, DEFAULT_TOLERANCE);
 	}
 	
 	/**
@@ -118,8 +156,9 @@ public class ImageProcessor extends AbstractImageProcessor<List<PreciseRectangle
 	 * 
 	 * @param img
 	 *            A boolean image, ordered row, column
-	 * @param result
-	 *            List to populate with bounding boxes
+	 * @param arena
+	 *            Arena to get rectangles from. Bounding boxes are added to its
+	 *            result list.
 	 * @param xMin
 	 *            Left bound of image to search (minimum index of the array)
 	 * @param xMax
@@ -131,10 +170,23 @@ public class ImageProcessor extends AbstractImageProcessor<List<PreciseRectangle
 	 *            Bottom bound
 	 * @return if any bounding boxes were found
 	 */
-	public boolean boundingBox(BinaryImage img, List<PreciseRectangle> result, final int xMin, final int xMax, final int yMin, final int yMax) {
+	public boolean boundingBox(BinaryImage img, ProcessingArena arena, final int xMin, final int xMax, final int yMin, final int yMax) {
+		return boundingBox(img, arena, xMin, xMax, yMin, yMax, minBlobWidth, minBlobHeight);
+	}
+	
+	/**
+	 * Searches an image for blobs, with a given minimum blob size.
+	 * 
+	 * @param minWidth
+	 *            Smallest width of a bounding box
+	 * @param minHeight
+	 *            Smallest height of a bounding box
+	 * @see #boundingBox(BinaryImage, ProcessingArena, int, int, int, int)
+	 */
+	protected boolean boundingBox(BinaryImage img, ProcessingArena arena, final int xMin, final int xMax, final int yMin, final int yMax, final int minWidth, final int minHeight) {
 		int width = xMax - xMin;
 		int height= yMax - yMin;
-		if (width < minBlobWidth || height < minBlobHeight)
+		if (width < minWidth || height < minHeight)
 			// The image is too small to find any boxes
 			return false;
 		int xSplit = -2;
@@ -148,39 +200,76 @@ public class ImageProcessor extends AbstractImageProcessor<List<PreciseRectangle
 				ySplit = splitH(img, xMin, xMax, yMin, yMax);
 		}
 		if (xSplit >= 0)
-			return boundingBox(img, result, xMin, xSplit - 1, yMin, yMax) | boundingBox(img, result, xSplit + 1, xMax, yMin, yMax);
+			return boundingBox(img, arena, xMin, xSplit - 1, yMin, yMax, minWidth, minHeight) | boundingBox(img, arena, xSplit + 1, xMax, yMin, yMax, minWidth, minHeight);
 		if (ySplit >= 0)
-			return boundingBox(img, result, xMin, xMax, yMin, ySplit - 1) | boundingBox(img, result, xMin, xMax, ySplit + 1, yMax);
-		return result.add(new PreciseRectangle(xMin, yMin, xMax - xMin, yMax - yMin));
+			return boundingBox(img, arena, xMin, xMax, yMin, ySplit - 1, minWidth, minHeight) | boundingBox(img, arena, xMin, xMax, ySplit + 1, yMax, minWidth, minHeight);
+		return arena.getResults().add(arena.nextRectangle(xMin, yMin, xMax - xMin, yMax - yMin));
 	}
 	
-	protected List<PreciseRectangle> processBooleanMap(BinaryImage processed, int w, int h) {
-		// List of the rectangles to be generated by boundingBox and processBoxesDestinationDeepSpace
-		List<PreciseRectangle> rectangles = new ArrayList<>();
-
+	/**
+	 * Get the mask that the diff should be written to
+	 * @param arena Arena for this frame
+	 * @return mask
+	 */
+	protected MutableBinaryImage getDiffMask(ProcessingArena arena) {
+		return arena.getMask(0);
+	}
+	
+	/**
+	 * Find the bounding boxes in a mask, in pixels, and add them to the
+	 * arena's result list.
+	 * @param arena Arena to store results in
+	 * @param processed The mask
+	 * @param w Width of the mask
+	 * @param h Height of the mask
+	 */
+	protected void findRectangles(ProcessingArena arena, BinaryImage processed, int w, int h) {
+		boundingBox(processed, arena, 0, w - 1, 0, h - 1);
+	}
+	
+	/**
+	 * Find the bounding boxes in a mask.
+	 * @param arena Arena to store results in
+	 * @param processed The mask
+	 * @param w Width of the mask
+	 * @param h Height of the mask
+	 * @return The bounding boxes, scaled to fractions of the frame size, sorted from left to right
+	 */
+	protected List<PreciseRectangle> processBooleanMap(ProcessingArena arena, BinaryImage processed, int w, int h) {
 		// find rectangles
-		// long boundingBoxStart = System.nanoTime();
-		boundingBox(processed, rectangles, 0, w - 1, 0, h - 1);
-		// long boundingBoxEnd = System.nanoTime();
-		// System.out.println("Time BoundingBox: " + (boundingBoxEnd - boundingBoxStart) );
+		final long start = System.nanoTime();
+		findRectangles(arena, processed, w, h);
 		
-		//sort the rectangles by area
+		// List of the rectangles generated by boundingBox
+		List<PreciseRectangle> rectangles = arena.getResults();
+		
+		//scale the rectangles to be in terms of width/height
 		final double xFactor = 1.0 / ((double) getFrameWidth());
 		final double yFactor = 1.0 / ((double) getFrameHeight());
-		//scale the rectangles to be in terms of width/height
-		rectangles = rectangles.stream()
-				.map(PreciseRectangle.scalar(xFactor, yFactor, xFactor, yFactor))
-				.sorted((a, b)->(Double.compare(a.getX(), b.getX())))
-				.collect(Collectors.toList());
+		for (PreciseRectangle rectangle : rectangles)
+			((MutablePreciseRectangle) rectangle).scaleInPlace(xFactor, yFactor, xFactor, yFactor);
+		
+		//sort the rectangles by x
+		rectangles.sort(LEFT_TO_RIGHT);
+		SEGMENT_TIME.recordSince(start);
 		return rectangles;
 	}
 
 	@Override
 	public List<PreciseRectangle> apply(VideoFrame frameOn, VideoFrame frameOff) {
 		try {
-			BufferedImage offImg = frameOff.getBufferedImage();
-			BufferedImage onImg = frameOn.getBufferedImage();
-			return apply(onImg, offImg);
+			if (!this.diff.isRaw()) {
+				final long start = System.nanoTime();
+				BufferedImage offImg = frameOff.getBufferedImage();
+				BufferedImage onImg = frameOn.getBufferedImage();
+				DECODE_TIME.recordSince(start);
+				return apply(onImg, offImg);
+			}
+			arena.reset();
+			final long start = System.nanoTime();
+			BinaryImage result = this.diff.apply(frameOn, frameOff, getDiffMask(arena));
+			DIFF_TIME.recordSince(start);
+			return processBooleanMap(arena, result, getFrameWidth(), getFrameHeight());
 		} catch (UnsupportedMethod e) {
 			//JPEG decode failed
 			e.printStackTrace();
@@ -190,10 +279,13 @@ public class ImageProcessor extends AbstractImageProcessor<List<PreciseRectangle
 	
 	public List<PreciseRectangle> apply(BufferedImage onImg, BufferedImage offImg) {
 		// TODO maybe add null check for images
-		BinaryImage result = this.diff.apply(onImg, offImg);
+		arena.reset();
+		final long start = System.nanoTime();
+		BinaryImage result = this.diff.apply(onImg, offImg, getDiffMask(arena));
+		DIFF_TIME.recordSince(start);
 		
 		if (result == null)
 			return null;
-		return processBooleanMap(result, offImg.getWidth(), offImg.getHeight());
+		return processBooleanMap(arena, result, offImg.getWidth(), offImg.getHeight());
 	}
 }
@@ -0,0 +1,43 @@
+package com.moe365.moepi.processing;
+
+/**
+ * A {@link BinaryImage} that can be written to, such as the mask that a
+ * {@link DiffGenerator} writes to.
+ * @author mailmindlin
+ * @see BitPackedBinaryImage
+ * @see RunLengthBinaryImage
+ */
+public interface MutableBinaryImage extends BinaryImage {
+	int getWidth();
+
+	int getHeight();
+
+	/**
+	 * Clear all pixels
+	 */
+	void clear();
+
+	/**
+	 * Set the pixel at (x, y)
+	 * @param x x coordinate of pixel to set
+	 * @param y y coordinate of pixel to set
+	 */
+	void set(int x, int y);
+
+	/**
+	 * Overwrite 64 pixels of a row at once.
+	 * <p>
+	 * To write a whole row, words must be written in order, starting with
+	 * word 0, which is what the diff generators do. Implementations may
+	 * (like {@link RunLengthBinaryImage}) rely on this, and throw away the
+	 * rest of the row when word 0 is written. Different rows may be written
+	 * from different threads.
+	 * </p>
+	 * @param y row to write to
+	 * @param wordIndex index of the word in the row, such that bit <var>i</var>
+	 *            of <var>bits</var> is the pixel at <code>x = 64 * wordIndex + i</code>.
+	 * @param bits value of the pixels. Bits past the right edge of the image
+	 *            MUST be 0.
+	 */
+	void setWord(int y, int wordIndex, long bits);
+}
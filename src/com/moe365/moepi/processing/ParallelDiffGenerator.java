@@ -0,0 +1,119 @@
+package com.moe365.moepi.processing;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A {@link DiffGenerator} that splits the frame into horizontal bands, and
+ * diffs them in parallel.
+ * <p>
+ * The first band is diffed on the calling thread, and the rest are run on a
+ * dedicated {@link ForkJoinPool} (so we don't fight with anything else using
+ * the common pool). Because the bands cover different rows, they never
+ * write to the same word of the result.
+ * </p>
+ * <p>
+ * The band tasks are created once, and reused for every frame. Like the
+ * rest of the processing pipeline, instances are not safe to use from
+ * multiple threads at once.
+ * </p>
+ * @author mailmindlin
+ */
+public class ParallelDiffGenerator extends DiffGenerator {
+	protected final ForkJoinPool pool;
+	protected final BandTask[] bands;
+
+	/**
+	 * Create a generator with its own pool, with one thread for each band
+	 * after the first.
+	 * @param numBands number of bands to split the frame into
+	 */
+	public ParallelDiffGenerator(int frameMinX, int frameMinY, int frameMaxX, int frameMaxY, int tolerance, int numBands) {
+		this(frameMinX, frameMinY, frameMaxX, frameMaxY, tolerance, numBands, new ForkJoinPool(Math.max(1, numBands - 1)));
+	}
+
+	/**
+	 * @param numBands number of bands to split the frame into
+	 * @param pool pool to run bands on
+	 */
+	public ParallelDiffGenerator(int frameMinX, int frameMinY, int frameMaxX, int frameMaxY, int tolerance, int numBands, ForkJoinPool pool) {
+		super(frameMinX, frameMinY, frameMaxX, frameMaxY, tolerance);
+		final int height = frameMaxY - frameMinY;
+		if (numBands < 1)
+			throw new IllegalArgumentException("Invalid number of bands (expect: bands > 0; bands = " + numBands + ")");
+		// Don't make bands that are empty
+		numBands = Math.max(1, Math.min(numBands, height));
+		this.pool = pool;
+		this.bands = new BandTask[numBands];
+		for (int i = 0; i < numBands; i++)
+			this.bands[i] = new BandTask(frameMinY + (int) ((long) height * i / numBands), frameMinY + (int) ((long) height * (i + 1) / numBands));
+	}
+
+	/**
+	 * @return the number of bands that frames are split into
+	 */
+	public int getNumBands() {
+		return this.bands.length;
+	}
+
+	@Override
+	public <T extends MutableBinaryImage> T apply(BufferedImage onImg, BufferedImage offImg, T result) {
+		final BandTask[] bands = this.bands;
+		int started = 1;
+		try {
+			for (; started < bands.length; started++) {
+				bands[started].reinitialize();
+				bands[started].set(onImg, offImg, result);
+				pool.execute(bands[started]);
+			}
+			// Do the first band ourselves, instead of waiting around
+			diffRows(onImg, offImg, result, bands[0].yMin, bands[0].yMax);
+		} finally {
+			// Every band has to be done before they're reused for the next frame,
+			// even if this one failed, or two frames would be diffed into the same mask
+			for (int i = 1; i < started; i++) {
+				bands[i].quietlyJoin();
+				bands[i].set(null, null, null);
+			}
+		}
+		for (int i = 1; i < bands.length; i++)
+			// Rethrows anything thrown by the band
+			if (bands[i].isCompletedAbnormally())
+				bands[i].join();
+		return result;
+	}
+
+	/**
+	 * Shut down the pool that the bands are run on.
+	 */
+	public void shutdown() {
+		this.pool.shutdown();
+	}
+
+	/**
+	 * Diffs the rows in one band
+	 */
+	@SuppressWarnings("serial")
+	protected class BandTask extends RecursiveAction {
+		protected final int yMin, yMax;
+		protected BufferedImage onImg, offImg;
+		protected MutableBinaryImage result;
+
+		protected BandTask(int yMin, int yMax) {
+			this.yMin = yMin;
+			this.yMax = yMax;
+		}
+
+		protected void set(BufferedImage onImg, BufferedImage offImg, MutableBinaryImage result) {
+			this.onImg = onImg;
+			this.offImg = offImg;
+			this.result = result;
+		}
+
+		@Override
+		protected void compute() {
+			diffRows(onImg, offImg, result, yMin, yMax);
+		}
+	}
+}
@@ -0,0 +1,300 @@
+package com.moe365.moepi.processing;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Consumer;
+
+import com.moe365.moepi.geom.PreciseRectangle;
+import com.moe365.moepi.metrics.Counter;
+import com.moe365.moepi.metrics.MetricsRegistry;
+import com.moe365.moepi.util.LatestWinsRingBuffer;
+
+import au.edu.jcu.v4l4j.VideoFrame;
+import au.edu.jcu.v4l4j.exceptions.UnsupportedMethod;
+
+/**
+ * An {@link ImageProcessor} that splits processing into stages, each on its
+ * own thread:
+ * <ol>
+ * <li>Decode: wait for a pair of frames, and decode them, unless the diff
+ * generator reads raw frames (this is the processor's main thread)</li>
+ * <li>Diff: diff the frames into a mask, then recycle the frames</li>
+ * <li>Segment: find the bounding boxes in the mask</li>
+ * <li>Publish: pass the boxes to the result consumer</li>
+ * </ol>
+ * Stages are connected by {@link LatestWinsRingBuffer}s, so while frame
+ * <var>N</var> is being segmented, frame <var>N + 1</var> can be diffed, and
+ * the frame rate is limited by the slowest stage, instead of the sum of all
+ * of them. If a stage falls behind, the oldest frame waiting for it is dropped.
+ * <p>
+ * Each frame in the pipeline gets a {@link Slot} (which holds its own
+ * {@link ProcessingArena}) from a fixed pool, so the pipeline doesn't
+ * allocate anything per frame either. The results passed to the consumer are
+ * valid until it returns.
+ * </p>
+ * @author mailmindlin
+ */
+public class PipelinedImageProcessor extends ImageProcessor {
+	/**
+	 * Default number of frames that can wait between the diff, segment and
+	 * publish stages.
+	 */
+	public static final int DEFAULT_DEPTH = 2;
+	/**
+	 * Number of stages that can be working on a slot at once
+	 */
+	protected static final int NUM_STAGES = 4;
+	protected static final Counter FRAMES_DROPPED = MetricsRegistry.getDefault().counter("moepi_pipeline_dropped_total", "Frames dropped because a pipeline stage fell behind");
+
+	/**
+	 * Slots that aren't being used
+	 */
+	protected final ArrayBlockingQueue<Slot> freeSlots;
+	/**
+	 * Decoded frames, waiting to be diffed. This only holds one pair, because
+	 * each pair holds on to two of the camera's buffers.
+	 */
+	protected final LatestWinsRingBuffer<Slot> toDiff;
+	/**
+	 * Masks waiting to be segmented
+	 */
+	protected final LatestWinsRingBuffer<Slot> toSegment;
+	/**
+	 * Results waiting to be published
+	 */
+	protected final LatestWinsRingBuffer<Slot> toPublish;
+
+	protected final Thread diffThread;
+	protected final Thread segmentThread;
+	protected final Thread publishThread;
+
+	public PipelinedImageProcessor(int frameWidth, int frameHeight, int minBlobWidth, int minBlobHeight, DiffGenerator diff, Consumer<List<PreciseRectangle>> handler) {
+		this(frameWidth, frameHeight, minBlobWidth, minBlobHeight, diff, DEFAULT_DEPTH, handler);
+	}
+
+	/**
+	 * @param depth Number of frames that can wait between each of the later
+	 *            stages. Rounded up to a power of 2.
+	 */
+	public PipelinedImageProcessor(int frameWidth, int frameHeight, int minBlobWidth, int minBlobHeight, DiffGenerator diff, int depth, Consumer<List<PreciseRectangle>> handler) {
+		super(frameWidth, frameHeight, minBlobWidth, minBlobHeight, diff, handler);
+		this.toDiff = new LatestWinsRingBuffer<>(1);
+		this.toSegment = new LatestWinsRingBuffer<>(depth);
+		this.toPublish = new LatestWinsRingBuffer<>(depth);
+
+		// Enough slots that every stage and ring can be full at once
+		final int numSlots = NUM_STAGES + toDiff.capacity() + toSegment.capacity() + toPublish.capacity();
+		this.freeSlots = new ArrayBlockingQueue<>(numSlots);
+		for (int i = 0; i < numSlots; i++)
+			this.freeSlots.add(new Slot(frameWidth, frameHeight));
+
+		this.diffThread = new Thread(this::runDiff);
+		this.diffThread.setName(thread.getName() + "-diff");
+		this.segmentThread = new Thread(this::runSegment);
+		this.segmentThread.setName(thread.getName() + "-segment");
+		this.publishThread = new Thread(this::runPublish);
+		this.publishThread.setName(thread.getName() + "-publish");
+	}
+
+	@Override
+	public PipelinedImageProcessor start() {
+		diffThread.start();
+		segmentThread.start();
+		publishThread.start();
+		super.start();
+		return this;
+	}
+
+	@Override
+	public void stop() {
+		super.stop();
+		diffThread.interrupt();
+		segmentThread.interrupt();
+		publishThread.interrupt();
+	}
+
+	/**
+	 * Return a slot to the pool, recycling any frames it still holds.
+	 */
+	protected void release(Slot slot) {
+		if (slot == null)
+			return;
+		slot.recycleFrames();
+		slot.arena.reset();
+		freeSlots.offer(slot);
+	}
+
+	/**
+	 * Pass a slot to the next stage, releasing whatever slot was evicted to
+	 * make room for it.
+	 */
+	protected void forward(LatestWinsRingBuffer<Slot> next, Slot slot) {
+		Slot evicted = next.offer(slot);
+		if (evicted != null) {
+			FRAMES_DROPPED.inc();
+			release(evicted);
+		}
+	}
+
+	/**
+	 * Decode stage
+	 */
+	@Override
+	public void run() {
+		try {
+			while (!Thread.interrupted()) {
+				try {
+					frames.awaitPair();
+				} catch (InterruptedException e) {
+					break;
+				}
+
+				Slot slot = freeSlots.poll();
+				if (slot == null) {
+					// Shouldn't happen, but dropping the frame is better than waiting for a slot
+					frames.releasePair();
+					continue;
+				}
+				slot.frameOn = frames.getFrameOn();
+				slot.frameOff = frames.getFrameOff();
+				slot.captureTime = getCaptureTime(slot.frameOn);
+				frames.detachPair();
+				try {
+					// Raw diffs read the frames themselves
+					if (!this.diff.isRaw()) {
+						final long start = System.nanoTime();
+						slot.onImg = slot.frameOn.getBufferedImage();
+						slot.offImg = slot.frameOff.getBufferedImage();
+						DECODE_TIME.recordSince(start);
+					}
+				} catch (UnsupportedMethod e) {
+					//JPEG decode failed
+					e.printStackTrace();
+					release(slot);
+					continue;
+				}
+				forward(toDiff, slot);
+			}
+		} catch (Exception e) {
+			//be sure to print any/all exceptions
+			e.printStackTrace();
+			throw e;
+		} finally {
+			frames.clear();
+			release(toDiff.poll());
+		}
+	}
+
+	/**
+	 * Diff stage
+	 */
+	protected void runDiff() {
+		try {
+			while (!Thread.interrupted()) {
+				Slot slot = toDiff.take();
+				try {
+					final long start = System.nanoTime();
+					if (slot.onImg != null)
+						slot.mask = this.diff.apply(slot.onImg, slot.offImg, getDiffMask(slot.arena));
+					else
+						slot.mask = this.diff.apply(slot.frameOn, slot.frameOff, getDiffMask(slot.arena));
+					DIFF_TIME.recordSince(start);
+				} catch(ArrayIndexOutOfBoundsException | NullPointerException | UnsupportedMethod e) {
+					//These exceptions can probably be recovered from.
+					e.printStackTrace();
+					release(slot);
+					continue;
+				}
+				// We don't need the frames anymore, so give them back to the camera ASAP
+				slot.recycleFrames();
+				forward(toSegment, slot);
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		} finally {
+			release(toSegment.poll());
+		}
+	}
+
+	/**
+	 * Segment stage
+	 */
+	protected void runSegment() {
+		try {
+			while (!Thread.interrupted()) {
+				Slot slot = toSegment.take();
+				try {
+					slot.results = processBooleanMap(slot.arena, slot.mask, slot.width, slot.height);
+				} catch(ArrayIndexOutOfBoundsException | NullPointerException e) {
+					//These exceptions can probably be recovered from.
+					e.printStackTrace();
+					release(slot);
+					continue;
+				}
+				forward(toPublish, slot);
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		} finally {
+			release(toPublish.poll());
+		}
+	}
+
+	/**
+	 * Publish stage
+	 */
+	protected void runPublish() {
+		try {
+			while (!Thread.interrupted()) {
+				Slot slot = toPublish.take();
+				FRAMES_PROCESSED.inc();
+				try {
+					publish(slot.results, slot.captureTime);
+				} finally {
+					release(slot);
+				}
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		}
+	}
+
+	/**
+	 * Everything needed to process one frame
+	 */
+	protected static class Slot {
+		protected final int width, height;
+		protected final ProcessingArena arena;
+		protected VideoFrame frameOn, frameOff;
+		protected BufferedImage onImg, offImg;
+		protected BinaryImage mask;
+		protected List<PreciseRectangle> results;
+		/**
+		 * When the frame with the flash on was captured, in microseconds
+		 */
+		protected long captureTime;
+
+		protected Slot(int width, int height) {
+			this.width = width;
+			this.height = height;
+			this.arena = new ProcessingArena(width, height);
+		}
+
+		/**
+		 * Recycle the frames (if any) held by this slot
+		 */
+		protected void recycleFrames() {
+			this.onImg = null;
+			this.offImg = null;
+			if (frameOn != null) {
+				frameOn.recycle();
+				frameOn = null;
+			}
+			if (frameOff != null) {
+				frameOff.recycle();
+				frameOff = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package com.moe365.moepi.processing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.moe365.moepi.geom.MutablePreciseRectangle;
+import com.moe365.moepi.geom.PreciseRectangle;
+
+/**
+ * Storage that an image processor reuses for every frame, so that processing
+ * a frame doesn't allocate anything once the processor has warmed up.
+ * <p>
+ * The arena holds:
+ * <ul>
+ * <li>Masks the size of the frame. Mask 0 is the output of the diff; others
+ * are scratch space for processors that need it.</li>
+ * <li>Run-length encoded masks the size of the frame, for processors that
+ * want the diff as runs</li>
+ * <li>Rectangle slots, which are handed out in order, and returned all at once
+ * by {@link #reset()}</li>
+ * <li>The list of results for the current frame</li>
+ * </ul>
+ * Nothing in the arena is cleared by {@link #reset()} except the rectangle
+ * slots and the result list, so a user of a scratch mask is responsible for
+ * clearing it.
+ * </p>
+ * <p>
+ * Arenas are <strong>not</strong> thread safe, and everything handed out by
+ * one is only valid until the next call to {@link #reset()}.
+ * </p>
+ * @author mailmindlin
+ */
+public class ProcessingArena {
+	protected final int width;
+	protected final int height;
+	protected BitPackedBinaryImage[] masks = new BitPackedBinaryImage[1];
+	protected RunLengthBinaryImage[] runLengthMasks = new RunLengthBinaryImage[0];
+	protected MutablePreciseRectangle[] rectangles = new MutablePreciseRectangle[16];
+	/**
+	 * Number of rectangle slots that have been handed out since the last reset
+	 */
+	protected int numRectangles = 0;
+	protected final ArrayList<PreciseRectangle> results = new ArrayList<>(16);
+
+	/**
+	 * @param width width of masks
+	 * @param height height of masks
+	 */
+	public ProcessingArena(int width, int height) {
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Release everything handed out for the last frame.
+	 */
+	public void reset() {
+		this.numRectangles = 0;
+		this.results.clear();
+	}
+
+	/**
+	 * Get a mask. The contents of the mask are whatever the last user left in it.
+	 * @param index index of mask to get. Index 0 is the diff.
+	 * @return mask
+	 */
+	public BitPackedBinaryImage getMask(int index) {
+		if (index >= masks.length) {
+			BitPackedBinaryImage[] tmp = new BitPackedBinaryImage[index + 1];
+			System.arraycopy(masks, 0, tmp, 0, masks.length);
+			masks = tmp;
+		}
+		BitPackedBinaryImage mask = masks[index];
+		if (mask == null)
+			masks[index] = mask = new BitPackedBinaryImage(width, height);
+		return mask;
+	}
+
+	/**
+	 * Get a run-length encoded mask. The contents of the mask are whatever the
+	 * last user left in it.
+	 * @param index index of mask to get
+	 * @return mask
+	 */
+	public RunLengthBinaryImage getRunLengthMask(int index) {
+		if (index >= runLengthMasks.length) {
+			RunLengthBinaryImage[] tmp = new RunLengthBinaryImage[index + 1];
+			System.arraycopy(runLengthMasks, 0, tmp, 0, runLengthMasks.length);
+			runLengthMasks = tmp;
+		}
+		RunLengthBinaryImage mask = runLengthMasks[index];
+		if (mask == null)
+			runLengthMasks[index] = mask = new RunLengthBinaryImage(width, height);
+		return mask;
+	}
+
+	/**
+	 * Get the next unused rectangle slot, set to the given bounds.
+	 * @return rectangle
+	 */
+	public MutablePreciseRectangle nextRectangle(double x, double y, double width, double height) {
+		if (numRectangles == rectangles.length) {
+			MutablePreciseRectangle[] tmp = new MutablePreciseRectangle[rectangles.length * 2];
+			System.arraycopy(rectangles, 0, tmp, 0, rectangles.length);
+			rectangles = tmp;
+		}
+		MutablePreciseRectangle result = rectangles[numRectangles];
+		if (result == null)
+			rectangles[numRectangles] = result = new MutablePreciseRectangle();
+		numRectangles++;
+		return result.set(x, y, width, height);
+	}
+
+	/**
+	 * Get the list of results for this frame. The list is cleared by {@link #reset()}.
+	 * @return results
+	 */
+	public List<PreciseRectangle> getResults() {
+		return this.results;
+	}
+}
@@ -0,0 +1,184 @@
+package com.moe365.moepi.processing;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.moe365.moepi.geom.PreciseRectangle;
+
+/**
+ * An {@link ImageProcessor} that searches for blobs coarse-to-fine.
+ * <p>
+ * The diff is first reduced by 2x or 4x in each direction, where each pixel
+ * of the reduced mask is set if <em>any</em> of the pixels it covers are set
+ * (so even a 1-pixel-wide target shows up), and {@linkplain #boundingBox(BinaryImage, ProcessingArena, int, int, int, int)
+ * split} to find candidate boxes. The reduction works on whole words, so it
+ * costs about as much as reading the mask once. Each candidate is then split
+ * again at full resolution, only looking inside the candidate.
+ * </p>
+ * <p>
+ * Optionally, pixels that don't have a horizontal neighbor can be left out of
+ * the reduction, because at 4x, a sprinkling of single-pixel noise is enough
+ * to set most of the reduced mask, and then nothing can be split. That also
+ * drops targets that are only 1 pixel wide (or thin diagonal ones), so it's
+ * off by default.
+ * </p>
+ * <p>
+ * This isn't available from the command line, because it hasn't been faster
+ * than the plain {@link ImageProcessor} on anything we've tried: the
+ * word-wise split already skips empty background cheaply, and reducing the
+ * mask costs a full read of it on top. On the synthetic frames in
+ * {@code BoundingBoxBenchmark} (<code>pyramid2</code> and <code>pyramid4</code>),
+ * on x86, it took 61us (4x) against 43us at 640x480, and 214us against 155us
+ * at 1280x720, and sparse, noise-free masks made the gap wider. Run the
+ * benchmark on the Pi before wiring it up.
+ * </p>
+ * @author mailmindlin
+ */
+public class PyramidImageProcessor extends ImageProcessor {
+	/**
+	 * How much the mask is reduced by in each direction. Either 2 or 4.
+	 */
+	protected final int factor;
+	/**
+	 * The reduced mask
+	 */
+	protected final BitPackedBinaryImage coarse;
+	/**
+	 * Whether pixels without a horizontal neighbor are left out of the
+	 * reduced mask
+	 */
+	protected final boolean despeckle;
+
+	/**
+	 * @param factor How much to reduce the mask by in each direction. Must be 2 or 4.
+	 */
+	public PyramidImageProcessor(int frameWidth, int frameHeight, int minBlobWidth, int minBlobHeight, DiffGenerator diff, int factor, Consumer<List<PreciseRectangle>> handler) {
+		this(frameWidth, frameHeight, minBlobWidth, minBlobHeight, diff, factor, false, handler);
+	}
+
+	/**
+	 * @param factor How much to reduce the mask by in each direction. Must be 2 or 4.
+	 * @param despeckle Whether to leave pixels without a horizontal neighbor
+	 *            out of the reduced mask. Makes noisy masks easier to split,
+	 *            but misses targets that are only 1 pixel wide.
+	 */
+	public PyramidImageProcessor(int frameWidth, int frameHeight, int minBlobWidth, int minBlobHeight, DiffGenerator diff, int factor, boolean despeckle, Consumer<List<PreciseRectangle>> handler) {
+		super(frameWidth, frameHeight, minBlobWidth, minBlobHeight, diff, handler);
+		if (factor != 2 && factor != 4)
+			throw new IllegalArgumentException("Invalid pyramid factor (expect: 2 or 4; factor = " + factor + ")");
+		this.factor = factor;
+		this.despeckle = despeckle;
+		this.coarse = new BitPackedBinaryImage((frameWidth + factor - 1) / factor, (frameHeight + factor - 1) / factor);
+	}
+
+	/**
+	 * @return how much the mask is reduced by in each direction
+	 */
+	public int getFactor() {
+		return this.factor;
+	}
+
+	@Override
+	protected void findRectangles(ProcessingArena arena, BinaryImage processed, int w, int h) {
+		if (!(processed instanceof BitPackedBinaryImage)) {
+			super.findRectangles(arena, processed, w, h);
+			return;
+		}
+		final BitPackedBinaryImage fine = (BitPackedBinaryImage) processed;
+		final int factor = this.factor;
+		reduce(fine, coarse, factor, this.despeckle);
+
+		// Find candidates in the coarse mask
+		final List<PreciseRectangle> results = arena.getResults();
+		boundingBox(coarse, arena, 0, coarse.getWidth() - 1, 0, coarse.getHeight() - 1, minBlobWidth / factor, minBlobHeight / factor);
+
+		// Search each candidate at full resolution. Rectangle slots aren't
+		// reused until the arena is reset, so the candidates stay valid while
+		// the results are added after them.
+		final int numCandidates = results.size();
+		for (int i = 0; i < numCandidates; i++) {
+			final PreciseRectangle candidate = results.get(i);
+			final int cx = (int) candidate.getX(), cy = (int) candidate.getY();
+			boundingBox(fine, arena, cx * factor, Math.min(w, (cx + (int) candidate.getWidth() + 1) * factor) - 1,
+					cy * factor, Math.min(h, (cy + (int) candidate.getHeight() + 1) * factor) - 1);
+		}
+		results.subList(0, numCandidates).clear();
+	}
+
+	/**
+	 * OR-reduce a mask, so that each pixel of <var>coarse</var> is set if any
+	 * of the <var>factor</var>x<var>factor</var> pixels it covers in
+	 * <var>fine</var> are set.
+	 * <p>
+	 * Each coarse row is the OR of <var>factor</var> fine rows, and each fine
+	 * word is then folded (ORing each group of <var>factor</var> bits
+	 * together) and compressed into <code>64 / factor</code> bits of a
+	 * coarse word.
+	 * </p>
+	 * @param fine mask to reduce
+	 * @param coarse mask to write to. Must be <code>ceil(width / factor)</code>
+	 *            by <code>ceil(height / factor)</code>.
+	 * @param factor 2 or 4
+	 * @param despeckle whether to ignore pixels of <var>fine</var> that don't
+	 *            have a set pixel to their left or right
+	 */
+	public static void reduce(BitPackedBinaryImage fine, BitPackedBinaryImage coarse, int factor, boolean despeckle) {
+		final int fineWords = fine.getWordsPerRow(), coarseWords = coarse.getWordsPerRow();
+		final int fineHeight = fine.getHeight(), coarseHeight = coarse.getHeight();
+		final int bitsPerWord = 64 / factor;
+		for (int cy = 0; cy < coarseHeight; cy++) {
+			final int yMin = cy * factor, yMax = Math.min(fineHeight, yMin + factor);
+			for (int cw = 0; cw < coarseWords; cw++) {
+				long bits = 0;
+				for (int k = 0; k < factor; k++) {
+					final int fw = cw * factor + k;
+					if (fw >= fineWords)
+						break;
+					long word = 0;
+					for (int y = yMin; y < yMax; y++)
+						word |= despeckle ? despeckle(fine, y, fw, fineWords) : fine.getWord(y, fw);
+					bits |= (factor == 2 ? fold2(word) : fold4(word)) << (k * bitsPerWord);
+				}
+				coarse.setWord(cy, cw, bits);
+			}
+		}
+	}
+
+	/**
+	 * Get a word of a mask, without the pixels that don't have a horizontal
+	 * neighbor
+	 */
+	protected static long despeckle(BitPackedBinaryImage img, int y, int wordIndex, int wordsPerRow) {
+		final long word = img.getWord(y, wordIndex);
+		if (word == 0)
+			return 0;
+		final long left = wordIndex > 0 ? img.getWord(y, wordIndex - 1) : 0;
+		final long right = wordIndex + 1 < wordsPerRow ? img.getWord(y, wordIndex + 1) : 0;
+		final long neighbors = (word << 1) | (left >>> 63) | (word >>> 1) | (right << 63);
+		return word & neighbors;
+	}
+
+	/**
+	 * OR each pair of bits together, and pack the results into the low 32 bits
+	 */
+	protected static long fold2(long word) {
+		long x = (word | (word >>> 1)) & 0x5555555555555555L;
+		x = (x | (x >>> 1)) & 0x3333333333333333L;
+		x = (x | (x >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+		x = (x | (x >>> 4)) & 0x00FF00FF00FF00FFL;
+		x = (x | (x >>> 8)) & 0x0000FFFF0000FFFFL;
+		return (x | (x >>> 16)) & 0x00000000FFFFFFFFL;
+	}
+
+	/**
+	 * OR each group of 4 bits together, and pack the results into the low 16 bits
+	 */
+	protected static long fold4(long word) {
+		word |= word >>> 1;
+		long x = (word | (word >>> 2)) & 0x1111111111111111L;
+		x = (x | (x >>> 3)) & 0x0303030303030303L;
+		x = (x | (x >>> 6)) & 0x000F000F000F000FL;
+		x = (x | (x >>> 12)) & 0x000000FF000000FFL;
+		return (x | (x >>> 24)) & 0x000000000000FFFFL;
+	}
+}
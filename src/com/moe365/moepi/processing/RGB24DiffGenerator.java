@@ -0,0 +1,109 @@
+package com.moe365.moepi.processing;
+
+import java.nio.ByteBuffer;
+
+import au.edu.jcu.v4l4j.ImagePalette;
+import au.edu.jcu.v4l4j.VideoFrame;
+
+/**
+ * A {@link DiffGenerator} that reads RGB24 or BGR24 frames straight from
+ * their native buffers.
+ * <p>
+ * The {@linkplain #test(int, int) test} only looks at red and green, so that's
+ * all we read: two bytes out of every three, with absolute gets, so the frame
+ * is never copied into (or decoded to) a heap array. On the Pi, memory
+ * bandwidth is the bottleneck, not arithmetic.
+ * </p>
+ * @author mailmindlin
+ */
+public class RGB24DiffGenerator extends DiffGenerator {
+	protected static final int BYTES_PER_PIXEL = 3;
+	/**
+	 * Number of bytes in each row of a frame
+	 */
+	protected final int bytesPerLine;
+	/**
+	 * Offset of the red byte in each pixel
+	 */
+	protected final int redOffset;
+	/**
+	 * Offset of the green byte in each pixel
+	 */
+	protected final int greenOffset;
+
+	/**
+	 * @param imageWidth width of the captured frames, in pixels
+	 * @param palette format of the frames. Must be RGB24 or BGR24.
+	 */
+	public RGB24DiffGenerator(int frameMinX, int frameMinY, int frameMaxX, int frameMaxY, int tolerance, int imageWidth, ImagePalette palette) {
+		super(frameMinX, frameMinY, frameMaxX, frameMaxY, tolerance);
+		this.bytesPerLine = imageWidth * BYTES_PER_PIXEL;
+		switch (palette) {
+			case RGB24:
+				this.redOffset = 0;
+				break;
+			case BGR24:
+				this.redOffset = 2;
+				break;
+			default:
+				throw new IllegalArgumentException("Unsupported palette: " + palette);
+		}
+		this.greenOffset = 1;
+	}
+
+	@Override
+	public boolean isRaw() {
+		return true;
+	}
+
+	@Override
+	public <T extends MutableBinaryImage> T apply(VideoFrame frameOn, VideoFrame frameOff, T result) {
+		return apply(frameOn.getBuffer(), frameOff.getBuffer(), result);
+	}
+
+	/**
+	 * Diff two frames
+	 * @param on frame taken with the flash on. Only absolute gets are used, so
+	 *            its position isn't changed.
+	 * @param off frame taken with the flash off
+	 * @param result mask to overwrite
+	 * @return result
+	 */
+	public <T extends MutableBinaryImage> T apply(ByteBuffer on, ByteBuffer off, T result) {
+		diffRowsRGB24(on, off, result, 0, frameMaxX - frameMinX, frameMinY, frameMaxY);
+		return result;
+	}
+
+	@Override
+	public BitPackedBinaryImage applyRegion(VideoFrame frameOn, VideoFrame frameOff, BitPackedBinaryImage result, int xMin, int yMin, int xMax, int yMax) {
+		final int xStart = regionStart(xMin), xEnd = regionEnd(xMax);
+		yMin = Math.max(yMin, frameMinY);
+		yMax = Math.min(yMax, frameMaxY);
+		if (xStart < xEnd && yMin < yMax)
+			diffRowsRGB24(frameOn.getBuffer(), frameOff.getBuffer(), result, xStart, xEnd, yMin, yMax);
+		return result;
+	}
+
+	protected void diffRowsRGB24(ByteBuffer on, ByteBuffer off, MutableBinaryImage result, int xStart, int xEnd, int yMin, int yMax) {
+		final int redOffset = this.redOffset, greenOffset = this.greenOffset;
+		// Buffers may not start at 0, but both are laid out the same
+		final int offDelta = off.position() - on.position();
+		for (int y = yMin; y < yMax; y++) {
+			final int idxY = y - frameMinY;
+			int idx = on.position() + y * bytesPerLine + (frameMinX + xStart) * BYTES_PER_PIXEL;
+			long word = 0;
+			for (int x = xStart; x < xEnd; x++, idx += BYTES_PER_PIXEL) {
+				int dR = (on.get(idx + redOffset) & 0xFF) - (off.get(idx + offDelta + redOffset) & 0xFF);
+				int dG = (on.get(idx + greenOffset) & 0xFF) - (off.get(idx + offDelta + greenOffset) & 0xFF);
+				if (test(dR, dG))
+					word |= 1L << x;
+				if ((x & 63) == 63) {
+					result.setWord(idxY, x >>> 6, word);
+					word = 0;
+				}
+			}
+			if ((xEnd & 63) != 0)
+				result.setWord(idxY, xEnd >>> 6, word);
+		}
+	}
+}
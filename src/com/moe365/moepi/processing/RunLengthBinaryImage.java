@@ -0,0 +1,248 @@
+package com.moe365.moepi.processing;
+
+import java.util.Arrays;
+
+/**
+ * A {@link BinaryImage} that stores each row as a list of runs of set pixels.
+ * <p>
+ * Each row has a packed <code>int[]</code> of <code>[start, end)</code> pairs,
+ * sorted from left to right, which never overlap or touch. Since most of a
+ * diff is background, a row usually has only a few runs, so
+ * {@link #testRow(int, int, int)} answers in O(runs) instead of O(width), and
+ * consumers like the {@link ConnectedComponentLabeler} can use the runs
+ * directly, instead of finding them again.
+ * </p>
+ * <p>
+ * Rows are written with {@link #setWord(int, int, long)} (appending runs as
+ * words are written from left to right), or with {@link #set(int, int)}.
+ * Row storage is reused, and only grows, so once warmed up writing a mask
+ * doesn't allocate. Different rows may be written from different threads.
+ * </p>
+ * <p>
+ * Testing pixels outside of the image is undefined.
+ * </p>
+ * @author mailmindlin
+ */
+public class RunLengthBinaryImage implements MutableBinaryImage {
+	protected static final int INITIAL_ROW_CAPACITY = 8;
+
+	protected final int width;
+	protected final int height;
+	/**
+	 * The runs of each row, as <code>[start0, end0, start1, end1, ...]</code>
+	 */
+	protected final int[][] runs;
+	/**
+	 * Number of runs in each row
+	 */
+	protected final int[] runCounts;
+
+	public RunLengthBinaryImage(int width, int height) {
+		if (width < 0 || height < 0)
+			throw new IllegalArgumentException("Invalid dimensions " + width + "x" + height);
+		this.width = width;
+		this.height = height;
+		this.runs = new int[height][];
+		for (int y = 0; y < height; y++)
+			this.runs[y] = new int[INITIAL_ROW_CAPACITY * 2];
+		this.runCounts = new int[height];
+	}
+
+	@Override
+	public int getWidth() {
+		return this.width;
+	}
+
+	@Override
+	public int getHeight() {
+		return this.height;
+	}
+
+	/**
+	 * @param y row
+	 * @return the number of runs in the row
+	 */
+	public int getRunCount(int y) {
+		return this.runCounts[y];
+	}
+
+	/**
+	 * Get the runs of a row. Only the first <code>2 * {@link #getRunCount(int) getRunCount(y)}</code>
+	 * elements are valid, and the array may be replaced when the row is written to.
+	 * @param y row
+	 * @return the runs of the row, as <code>[start0, end0, start1, end1, ...]</code>
+	 *         (ends are exclusive)
+	 */
+	public int[] getRuns(int y) {
+		return this.runs[y];
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(this.runCounts, 0);
+	}
+
+	/**
+	 * Clear all pixels in a row
+	 * @param y row to clear
+	 */
+	public void clearRow(int y) {
+		this.runCounts[y] = 0;
+	}
+
+	/**
+	 * Add a run to the right end of a row
+	 * @param y row
+	 * @param start leftmost pixel in the run
+	 * @param end pixel after the rightmost pixel in the run. Must be greater
+	 *            than <var>start</var>.
+	 * @throws IllegalArgumentException if the run starts before the end of the
+	 *             last run in the row
+	 */
+	public void appendRun(int y, int start, int end) {
+		final int count = this.runCounts[y];
+		int[] row = this.runs[y];
+		if (count > 0) {
+			final int lastEnd = row[count * 2 - 1];
+			if (start == lastEnd) {
+				// Touches the last run
+				row[count * 2 - 1] = end;
+				return;
+			} else if (start < lastEnd) {
+				throw new IllegalArgumentException("Run [" + start + ", " + end + ") is not after the end of row " + y + " (" + lastEnd + ")");
+			}
+		}
+		if (count * 2 == row.length)
+			this.runs[y] = row = Arrays.copyOf(row, row.length * 2);
+		row[count * 2] = start;
+		row[count * 2 + 1] = end;
+		this.runCounts[y] = count + 1;
+	}
+
+	@Override
+	public void set(int x, int y) {
+		final int i = findRun(y, x);
+		if (i >= 0)
+			return;
+		// Index of the first run after x
+		final int next = -i - 1;
+		final int count = this.runCounts[y];
+		int[] row = this.runs[y];
+		final boolean joinsPrev = next > 0 && row[next * 2 - 1] == x;
+		final boolean joinsNext = next < count && row[next * 2] == x + 1;
+		if (joinsPrev && joinsNext) {
+			// Fill the gap between two runs
+			row[next * 2 - 1] = row[next * 2 + 1];
+			System.arraycopy(row, next * 2 + 2, row, next * 2, (count - next - 1) * 2);
+			this.runCounts[y] = count - 1;
+		} else if (joinsPrev) {
+			row[next * 2 - 1] = x + 1;
+		} else if (joinsNext) {
+			row[next * 2] = x;
+		} else {
+			if (count * 2 == row.length)
+				this.runs[y] = row = Arrays.copyOf(row, row.length * 2);
+			System.arraycopy(row, next * 2, row, next * 2 + 2, (count - next) * 2);
+			row[next * 2] = x;
+			row[next * 2 + 1] = x + 1;
+			this.runCounts[y] = count + 1;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Writing word 0 clears the row, and later words are appended to it, so
+	 * words must be written from left to right.
+	 * </p>
+	 */
+	@Override
+	public void setWord(int y, int wordIndex, long bits) {
+		if (wordIndex == 0)
+			this.runCounts[y] = 0;
+		final int base = wordIndex << 6;
+		int bit = 0;
+		while (bits != 0) {
+			// Skip zeros, then find the end of the run of ones
+			final int zeros = Long.numberOfTrailingZeros(bits);
+			bits >>>= zeros;
+			bit += zeros;
+			final int ones = Long.numberOfTrailingZeros(~bits);
+			appendRun(y, base + bit, base + bit + ones);
+			// Shifting by 64 is a no-op, so a word of all ones needs its own case
+			bits = ones == 64 ? 0 : bits >>> ones;
+			bit += ones;
+		}
+	}
+
+	/**
+	 * Find the run that contains a pixel
+	 * @return the index of the run containing x, or <code>-(insertion point) - 1</code>
+	 *         if x isn't set, where the insertion point is the index of the
+	 *         first run to the right of x.
+	 */
+	protected int findRun(int y, int x) {
+		final int[] row = this.runs[y];
+		int lo = 0, hi = this.runCounts[y] - 1;
+		while (lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (row[mid * 2 + 1] <= x)
+				lo = mid + 1;
+			else if (row[mid * 2] > x)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -lo - 1;
+	}
+
+	@Override
+	public boolean test(int x, int y) {
+		return findRun(y, x) >= 0;
+	}
+
+	@Override
+	public boolean testRow(int y, int xMin, int xMax) {
+		return nextSetBitInRow(y, xMin, xMax) >= 0;
+	}
+
+	@Override
+	public boolean testCol(int x, int yMin, int yMax) {
+		for (int y = yMin; y < yMax; y++)
+			if (findRun(y, x) >= 0)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Find the first set pixel in a row
+	 * @param y row to search
+	 * @param xMin leftmost column to search (inclusive)
+	 * @param xMax rightmost column to search (exclusive)
+	 * @return the x coordinate of the first set pixel in the range, or -1 if none are set
+	 */
+	public int nextSetBitInRow(int y, int xMin, int xMax) {
+		final int[] row = this.runs[y];
+		final int count = this.runCounts[y];
+		for (int i = 0; i < count; i++) {
+			final int start = row[i * 2], end = row[i * 2 + 1];
+			if (start >= xMax)
+				break;
+			if (end > xMin) {
+				final int x = Math.max(start, xMin);
+				return x < xMax ? x : -1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the total number of runs in the image
+	 */
+	public int getTotalRunCount() {
+		int total = 0;
+		for (int count : this.runCounts)
+			total += count;
+		return total;
+	}
+}
@@ -0,0 +1,337 @@
+package com.moe365.moepi.processing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.moe365.moepi.geom.PreciseRectangle;
+import com.moe365.moepi.geom.TrackedRectangle;
+
+/**
+ * Follows targets across frames, and smooths their bounds, so that whoever
+ * gets the results doesn't have to.
+ * <p>
+ * Each frame's rectangles are matched to the existing tracks by the overlap
+ * (intersection over union) between each rectangle and where each track is
+ * predicted to be, best match first. Each track has a constant-velocity
+ * Kalman filter on its center, and a random-walk filter on its size, which are
+ * predicted forward to the time of the frame and then corrected with the
+ * matched rectangle. Rectangles that don't match a track start a new one.
+ * </p>
+ * <p>
+ * A track is published once it has been seen in {@link #minHits} frames, and
+ * keeps being published (at its predicted position) for up to
+ * {@link #maxMisses} frames after it stops being seen, so a target that drops
+ * out for a frame doesn't disappear. Tracks are published oldest first, so a
+ * target stays at the same index from frame to frame, and each has an
+ * {@linkplain TrackedRectangle#getId() ID} that is never reused.
+ * </p>
+ * <p>
+ * This isn't the same as the {@link TrackingImageProcessor}, which uses the
+ * last frame's targets to decide where to look; this filters what was found.
+ * Trackers are <strong>not</strong> thread safe, and the rectangles returned
+ * are only valid until the next update.
+ * </p>
+ * @author mailmindlin
+ */
+public class TargetTracker {
+	/**
+	 * Default number of frames a target has to be seen in to be published
+	 */
+	public static final int DEFAULT_MIN_HITS = 2;
+	/**
+	 * Default number of frames a target is published for after it was last seen
+	 */
+	public static final int DEFAULT_MAX_MISSES = 3;
+	/**
+	 * Default smallest overlap (intersection over union) between a rectangle
+	 * and a track's prediction for them to be matched
+	 */
+	public static final double DEFAULT_MIN_IOU = 0.1;
+	/**
+	 * Variance of a measured coordinate, in (fractions of the frame)^2. This
+	 * is about a 3 pixel standard deviation at 640x480.
+	 */
+	public static final double MEASUREMENT_VARIANCE = 2.5e-5;
+	/**
+	 * Spectral density of the acceleration of a target's center, in (fractions
+	 * of the frame)^2/s^3. Higher follows turns faster; lower is smoother.
+	 */
+	public static final double ACCELERATION_NOISE = 0.02;
+	/**
+	 * Spectral density of the change in a target's size, in (fractions of the
+	 * frame)^2/s
+	 */
+	public static final double SIZE_NOISE = 0.01;
+	/**
+	 * Variance of a new track's velocity, in (fractions of the frame/s)^2
+	 */
+	protected static final double INITIAL_VELOCITY_VARIANCE = 1.0;
+	/**
+	 * Longest time step to predict over, in seconds, so that a stall doesn't
+	 * throw the tracks across the frame
+	 */
+	protected static final double MAX_DT = 0.5;
+	/**
+	 * Number of frames that a track has to be seen in for full confidence
+	 */
+	protected static final int CONFIDENT_HITS = 5;
+
+	protected final int minHits;
+	protected final int maxMisses;
+	protected final double minIou;
+
+	protected final ArrayList<Track> tracks = new ArrayList<>();
+	protected final ArrayList<PreciseRectangle> results = new ArrayList<>();
+	protected int nextId = 0;
+	/**
+	 * Time of the last update, or -1 before the first
+	 */
+	protected long lastTimestamp = -1;
+
+	// Matching scratch space
+	protected long[] pairs = new long[64];
+	protected boolean[] measurementMatched = new boolean[16];
+
+	public TargetTracker() {
+		this(DEFAULT_MIN_HITS, DEFAULT_MAX_MISSES, DEFAULT_MIN_IOU);
+	}
+
+	/**
+	 * @param minHits number of frames a target has to be seen in to be published
+	 * @param maxMisses number of frames a target is published for after it was last seen
+	 * @param minIou smallest overlap for a rectangle to match a track
+	 */
+	public TargetTracker(int minHits, int maxMisses, double minIou) {
+		if (minHits < 1)
+			throw new IllegalArgumentException("Invalid min hits: " + minHits);
+		if (maxMisses < 0)
+			throw new IllegalArgumentException("Invalid max misses: " + maxMisses);
+		this.minHits = minHits;
+		this.maxMisses = maxMisses;
+		this.minIou = minIou;
+	}
+
+	/**
+	 * Update the tracks with the rectangles found in a frame that was just
+	 * captured.
+	 * @see #update(List, long)
+	 */
+	public List<PreciseRectangle> update(List<PreciseRectangle> measurements) {
+		return update(measurements, System.nanoTime());
+	}
+
+	/**
+	 * Update the tracks with the rectangles found in a frame.
+	 * @param measurements rectangles found in the frame. They aren't kept.
+	 * @param timestamp time that the frame was captured at, in nanoseconds,
+	 *            from the same clock as {@link System#nanoTime()}
+	 * @return the tracks to publish, as {@link TrackedRectangle}s, oldest first
+	 */
+	public List<PreciseRectangle> update(List<PreciseRectangle> measurements, long timestamp) {
+		final double dt = lastTimestamp < 0 ? 0 : Math.min(MAX_DT, Math.max(0, (timestamp - lastTimestamp) / 1e9));
+		this.lastTimestamp = timestamp;
+
+		for (Track track : tracks)
+			track.predict(dt);
+
+		match(measurements);
+
+		// Delete tracks that have been gone for too long, or were never confirmed
+		for (int i = tracks.size() - 1; i >= 0; i--) {
+			final Track track = tracks.get(i);
+			if (track.misses > maxMisses || (track.misses > 0 && track.hits < minHits))
+				tracks.remove(i);
+		}
+
+		// Start tracks for the rectangles left over
+		for (int i = 0; i < measurements.size(); i++) {
+			if (measurementMatched[i])
+				continue;
+			tracks.add(new Track(nextId++, measurements.get(i)));
+		}
+
+		results.clear();
+		for (Track track : tracks)
+			if (track.hits >= minHits)
+				results.add(track.publish(maxMisses));
+		return results;
+	}
+
+	/**
+	 * Drop all tracks
+	 */
+	public void reset() {
+		tracks.clear();
+		results.clear();
+		lastTimestamp = -1;
+	}
+
+	/**
+	 * Match rectangles to tracks, greedily by overlap, and correct the
+	 * matched tracks. Sets {@link #measurementMatched}.
+	 */
+	protected void match(List<PreciseRectangle> measurements) {
+		final int numTracks = tracks.size(), numMeasurements = measurements.size();
+		if (measurementMatched.length < numMeasurements)
+			measurementMatched = new boolean[numMeasurements * 2];
+		Arrays.fill(measurementMatched, false);
+
+		// Find the candidate pairs, packed as the overlap (which is positive, so
+		// its bits sort in the same order) above the indices
+		int numPairs = 0;
+		for (int t = 0; t < numTracks; t++) {
+			final Track track = tracks.get(t);
+			for (int m = 0; m < numMeasurements; m++) {
+				final float iou = (float) track.iou(measurements.get(m));
+				if (iou < minIou || iou <= 0)
+					continue;
+				if (numPairs == pairs.length)
+					pairs = Arrays.copyOf(pairs, numPairs * 2);
+				pairs[numPairs++] = ((long) Float.floatToIntBits(iou) << 32) | (t << 16) | m;
+			}
+		}
+		Arrays.sort(pairs, 0, numPairs);
+
+		for (Track track : tracks)
+			track.matched = false;
+		for (int i = numPairs - 1; i >= 0; i--) {
+			final int t = (int) (pairs[i] >>> 16) & 0xFFFF, m = (int) pairs[i] & 0xFFFF;
+			final Track track = tracks.get(t);
+			if (track.matched || measurementMatched[m])
+				continue;
+			track.matched = true;
+			measurementMatched[m] = true;
+			track.correct(measurements.get(m));
+		}
+		for (Track track : tracks)
+			if (!track.matched)
+				track.misses++;
+	}
+
+	/**
+	 * A target being tracked. The state is the center (with velocity) and the
+	 * size, each filtered separately, which is the same as one filter over all
+	 * of them, since they're predicted and measured independently.
+	 */
+	protected static class Track {
+		protected final TrackedRectangle rectangle;
+		protected int hits;
+		protected int misses;
+		protected boolean matched;
+		/**
+		 * Confidence of the last rectangle matched
+		 */
+		protected double measuredConfidence;
+
+		// Center X: position, velocity, and covariance
+		protected double x, vx, pxx, pxv, pvx;
+		// Center Y
+		protected double y, vy, pyy, pyv, pvy;
+		// Size, and variance of each
+		protected double w, h, pw, ph;
+
+		protected Track(int id, PreciseRectangle measurement) {
+			this.rectangle = new TrackedRectangle(id);
+			this.hits = 1;
+			this.misses = 0;
+			this.measuredConfidence = measurement.getConfidence();
+			this.x = measurement.getX() + measurement.getWidth() / 2;
+			this.y = measurement.getY() + measurement.getHeight() / 2;
+			this.vx = this.vy = 0;
+			this.pxx = this.pyy = MEASUREMENT_VARIANCE;
+			this.pxv = this.pyv = 0;
+			this.pvx = this.pvy = INITIAL_VELOCITY_VARIANCE;
+			this.w = measurement.getWidth();
+			this.h = measurement.getHeight();
+			this.pw = this.ph = MEASUREMENT_VARIANCE;
+		}
+
+		/**
+		 * Predict the state <var>dt</var> seconds ahead
+		 */
+		protected void predict(double dt) {
+			final double q = ACCELERATION_NOISE;
+			final double dt2 = dt * dt, dt3 = dt2 * dt;
+			this.x += this.vx * dt;
+			this.pxx += 2 * dt * this.pxv + dt2 * this.pvx + q * dt3 / 3;
+			this.pxv += dt * this.pvx + q * dt2 / 2;
+			this.pvx += q * dt;
+
+			this.y += this.vy * dt;
+			this.pyy += 2 * dt * this.pyv + dt2 * this.pvy + q * dt3 / 3;
+			this.pyv += dt * this.pvy + q * dt2 / 2;
+			this.pvy += q * dt;
+
+			this.pw += SIZE_NOISE * dt;
+			this.ph += SIZE_NOISE * dt;
+		}
+
+		/**
+		 * Correct the state with a measured rectangle
+		 */
+		protected void correct(PreciseRectangle measurement) {
+			final double r = MEASUREMENT_VARIANCE;
+			this.hits++;
+			this.misses = 0;
+			this.measuredConfidence = measurement.getConfidence();
+
+			// Center X
+			double s = this.pxx + r;
+			double k0 = this.pxx / s, k1 = this.pxv / s;
+			double innovation = measurement.getX() + measurement.getWidth() / 2 - this.x;
+			this.x += k0 * innovation;
+			this.vx += k1 * innovation;
+			this.pvx -= k1 * this.pxv;
+			this.pxx *= 1 - k0;
+			this.pxv *= 1 - k0;
+
+			// Center Y
+			s = this.pyy + r;
+			k0 = this.pyy / s;
+			k1 = this.pyv / s;
+			innovation = measurement.getY() + measurement.getHeight() / 2 - this.y;
+			this.y += k0 * innovation;
+			this.vy += k1 * innovation;
+			this.pvy -= k1 * this.pyv;
+			this.pyy *= 1 - k0;
+			this.pyv *= 1 - k0;
+
+			// Size
+			k0 = this.pw / (this.pw + r);
+			this.w += k0 * (measurement.getWidth() - this.w);
+			this.pw *= 1 - k0;
+			k0 = this.ph / (this.ph + r);
+			this.h += k0 * (measurement.getHeight() - this.h);
+			this.ph *= 1 - k0;
+		}
+
+		/**
+		 * @return the intersection over union of the predicted box and a rectangle
+		 */
+		protected double iou(PreciseRectangle other) {
+			final double left = Math.max(this.x - this.w / 2, other.getX());
+			final double right = Math.min(this.x + this.w / 2, other.getX() + other.getWidth());
+			final double top = Math.max(this.y - this.h / 2, other.getY());
+			final double bottom = Math.min(this.y + this.h / 2, other.getY() + other.getHeight());
+			if (right <= left || bottom <= top)
+				return 0;
+			final double intersection = (right - left) * (bottom - top);
+			return intersection / (this.w * this.h + other.getWidth() * other.getHeight() - intersection);
+		}
+
+		/**
+		 * @param maxMisses most frames that a track can be published for
+		 *            without being seen
+		 * @return the rectangle to publish
+		 */
+		protected TrackedRectangle publish(int maxMisses) {
+			// Less sure about new tracks, and ones that we're coasting
+			final double confidence = this.measuredConfidence
+					* Math.min(1.0, this.hits / (double) CONFIDENT_HITS)
+					* (1.0 - this.misses / (maxMisses + 1.0));
+			this.rectangle.set(this.x - this.w / 2, this.y - this.h / 2, this.w, this.h);
+			return this.rectangle.setTrack(this.vx, this.vy, this.hits, this.misses, confidence);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package com.moe365.moepi.processing;
+
+import java.util.function.Consumer;
+
+/**
+ * A consumer of a processor's results that also wants to know when the frames
+ * they were found in were captured.
+ * <p>
+ * Times are in microseconds, on the same clock as {@link System#nanoTime()}
+ * (which is what V4L2 timestamps frames with).
+ * </p>
+ * @author mailmindlin
+ * @param <R> the result type
+ * @see AbstractImageProcessor#getCaptureTime(au.edu.jcu.v4l4j.VideoFrame)
+ */
+@FunctionalInterface
+public interface TimedResultConsumer<R> extends Consumer<R> {
+	/**
+	 * @param result result of processing a pair of frames
+	 * @param captureTime when the frame with the flash on was captured, or -1
+	 *            if not known
+	 * @param latency microseconds from capture until now, or -1 if not known
+	 */
+	void accept(R result, long captureTime, long latency);
+	
+	/**
+	 * Accept a result without knowing when it was captured
+	 */
+	@Override
+	default void accept(R result) {
+		accept(result, -1, -1);
+	}
+}
@@ -0,0 +1,399 @@
+package com.moe365.moepi.processing;
+
+import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.moe365.moepi.geom.PreciseRectangle;
+import com.moe365.moepi.metrics.Counter;
+import com.moe365.moepi.metrics.MetricsRegistry;
+
+import au.edu.jcu.v4l4j.VideoFrame;
+import au.edu.jcu.v4l4j.exceptions.UnsupportedMethod;
+
+/**
+ * A {@link ConnectedComponentProcessor} that, once it has found some targets,
+ * only diffs and searches the regions around where it expects them to be.
+ * <p>
+ * After a full-frame scan, each target found becomes a <em>track</em>. For the
+ * next frame, each track's box is moved by its velocity (the smoothed change
+ * in its center per frame), and expanded by a margin, and only those regions
+ * of interest are diffed and labeled. If a track isn't found in its region,
+ * or a target is cut off by the edge of its region, the frame is scanned in
+ * full instead. A full scan is also done every
+ * {@link #rescanInterval} frames, to pick up new targets.
+ * </p>
+ * <p>
+ * While locked on to a few targets, the regions are a small fraction of the
+ * frame, and so is the work per frame. Note that JPEG frames still have to be
+ * decoded in full, so this helps the most with raw capture, where the diff
+ * generator reads just the rows and columns it needs.
+ * </p>
+ * @author mailmindlin
+ */
+public class TrackingImageProcessor extends ConnectedComponentProcessor {
+	/**
+	 * Default number of frames between full scans
+	 */
+	public static final int DEFAULT_RESCAN_INTERVAL = 30;
+	/**
+	 * Smallest margin around a predicted box, in pixels
+	 */
+	protected static final int MIN_MARGIN = 16;
+	/**
+	 * How much of the newest change in position goes into a track's velocity.
+	 * Lower is smoother.
+	 */
+	protected static final double VELOCITY_GAIN = 0.5;
+
+	protected static final Counter FULL_SCANS = MetricsRegistry.getDefault().counter("moepi_tracking_full_scans_total", "Frames that the tracking processor scanned in full");
+	protected static final Counter TARGETS_LOST = MetricsRegistry.getDefault().counter("moepi_tracking_lost_total", "Frames where a tracked target wasn't found in its region");
+
+	/**
+	 * Number of frames between full scans
+	 */
+	protected final int rescanInterval;
+	/**
+	 * Number of frames processed since the last full scan
+	 */
+	protected int framesSinceScan = 0;
+
+	protected Track[] tracks = new Track[8];
+	protected int numTracks = 0;
+	/**
+	 * Tracks for the frame being processed. Swapped with {@link #tracks}.
+	 */
+	protected Track[] nextTracks = new Track[8];
+
+	/**
+	 * Regions to diff and label in the current frame, as
+	 * <code>[xMin, yMin, xMax, yMax, ...]</code>
+	 */
+	protected int[] regions = new int[4 * 8];
+	protected int numRegions = 0;
+
+	// The frames being processed (either the raw frames, or decoded images)
+	protected VideoFrame frameOn, frameOff;
+	protected BufferedImage onImg, offImg;
+
+	public TrackingImageProcessor(int frameWidth, int frameHeight, int minBlobWidth, int minBlobHeight, DiffGenerator diff, Consumer<List<PreciseRectangle>> handler) {
+		this(frameWidth, frameHeight, minBlobWidth, minBlobHeight, diff, DEFAULT_RESCAN_INTERVAL, handler);
+	}
+
+	/**
+	 * @param rescanInterval number of frames between full scans
+	 */
+	public TrackingImageProcessor(int frameWidth, int frameHeight, int minBlobWidth, int minBlobHeight, DiffGenerator diff, int rescanInterval, Consumer<List<PreciseRectangle>> handler) {
+		super(frameWidth, frameHeight, minBlobWidth, minBlobHeight, diff, handler);
+		if (rescanInterval < 1)
+			throw new IllegalArgumentException("Invalid rescan interval: " + rescanInterval);
+		this.rescanInterval = rescanInterval;
+	}
+
+	/**
+	 * Regions are diffed into parts of rows, which only bit-packed masks support
+	 */
+	@Override
+	protected MutableBinaryImage getDiffMask(ProcessingArena arena) {
+		return arena.getMask(0);
+	}
+
+	@Override
+	public List<PreciseRectangle> apply(VideoFrame frameOn, VideoFrame frameOff) {
+		try {
+			if (!this.diff.isRaw()) {
+				final long start = System.nanoTime();
+				BufferedImage offImg = frameOff.getBufferedImage();
+				BufferedImage onImg = frameOn.getBufferedImage();
+				DECODE_TIME.recordSince(start);
+				return apply(onImg, offImg);
+			}
+			this.frameOn = frameOn;
+			this.frameOff = frameOff;
+			return track();
+		} catch (UnsupportedMethod e) {
+			//JPEG decode failed
+			e.printStackTrace();
+			return Collections.emptyList();
+		} finally {
+			this.frameOn = null;
+			this.frameOff = null;
+		}
+	}
+
+	@Override
+	public List<PreciseRectangle> apply(BufferedImage onImg, BufferedImage offImg) {
+		this.onImg = onImg;
+		this.offImg = offImg;
+		try {
+			return track();
+		} catch (UnsupportedMethod e) {
+			// Can't happen, because the images are already decoded
+			e.printStackTrace();
+			return Collections.emptyList();
+		} finally {
+			this.onImg = null;
+			this.offImg = null;
+		}
+	}
+
+	/**
+	 * Process the current frames
+	 */
+	protected List<PreciseRectangle> track() throws UnsupportedMethod {
+		final BitPackedBinaryImage mask = arena.getMask(0);
+		final int width = getFrameWidth(), height = getFrameHeight();
+		if (numTracks > 0 && framesSinceScan < rescanInterval) {
+			arena.reset();
+			predictRegions(width, height);
+			final long start = System.nanoTime();
+			for (int i = 0; i < numRegions; i++)
+				diffRegion(mask, regions[i * 4], regions[i * 4 + 1], regions[i * 4 + 2], regions[i * 4 + 3]);
+			DIFF_TIME.recordSince(start);
+			List<PreciseRectangle> results = processBooleanMap(arena, mask, width, height);
+			if (!isClipped(results) && updateTracks(results, false)) {
+				framesSinceScan++;
+				return results;
+			}
+			TARGETS_LOST.inc();
+		}
+
+		// Full scan
+		FULL_SCANS.inc();
+		arena.reset();
+		numRegions = 0;
+		addRegion(0, 0, width, height);
+		final long start = System.nanoTime();
+		diffRegion(mask, 0, 0, width, height);
+		DIFF_TIME.recordSince(start);
+		List<PreciseRectangle> results = processBooleanMap(arena, mask, width, height);
+		updateTracks(results, true);
+		framesSinceScan = 0;
+		return results;
+	}
+
+	protected void diffRegion(BitPackedBinaryImage mask, int xMin, int yMin, int xMax, int yMax) throws UnsupportedMethod {
+		if (this.onImg != null)
+			this.diff.applyRegion(this.onImg, this.offImg, mask, xMin, yMin, xMax, yMax);
+		else
+			this.diff.applyRegion(this.frameOn, this.frameOff, mask, xMin, yMin, xMax, yMax);
+	}
+
+	/**
+	 * Label each of the current regions
+	 */
+	@Override
+	protected void findRectangles(ProcessingArena arena, BinaryImage processed, int w, int h) {
+		labeler.reset();
+		for (int i = 0; i < numRegions; i++)
+			labeler.labelRegion(processed, regions[i * 4], regions[i * 4 + 1], regions[i * 4 + 2], regions[i * 4 + 3], minBlobWidth, minBlobHeight, arena.getResults());
+	}
+
+	/**
+	 * Set the regions for this frame to where the tracks are expected to be,
+	 * merging any that overlap (so nothing is labeled twice).
+	 */
+	protected void predictRegions(int width, int height) {
+		numRegions = 0;
+		for (int i = 0; i < numTracks; i++) {
+			final Track track = tracks[i];
+			final double marginX = track.getMarginX();
+			final double marginY = track.getMarginY();
+			addRegion(
+					Math.max(0, (int) Math.floor(track.xMin + track.vx - marginX)),
+					Math.max(0, (int) Math.floor(track.yMin + track.vy - marginY)),
+					Math.min(width, (int) Math.ceil(track.xMax + track.vx + marginX) + 1),
+					Math.min(height, (int) Math.ceil(track.yMax + track.vy + marginY) + 1));
+		}
+		// Merge overlapping regions. There are only a few, so O(n^2) is fine.
+		boolean merged;
+		do {
+			merged = false;
+			for (int i = 0; i < numRegions && !merged; i++) {
+				for (int j = i + 1; j < numRegions; j++) {
+					if (regions[i * 4] < regions[j * 4 + 2] && regions[j * 4] < regions[i * 4 + 2]
+							&& regions[i * 4 + 1] < regions[j * 4 + 3] && regions[j * 4 + 1] < regions[i * 4 + 3]) {
+						regions[i * 4] = Math.min(regions[i * 4], regions[j * 4]);
+						regions[i * 4 + 1] = Math.min(regions[i * 4 + 1], regions[j * 4 + 1]);
+						regions[i * 4 + 2] = Math.max(regions[i * 4 + 2], regions[j * 4 + 2]);
+						regions[i * 4 + 3] = Math.max(regions[i * 4 + 3], regions[j * 4 + 3]);
+						// Move the last region into j
+						numRegions--;
+						System.arraycopy(regions, numRegions * 4, regions, j * 4, 4);
+						merged = true;
+						break;
+					}
+				}
+			}
+		} while (merged);
+	}
+
+	/**
+	 * Check if any of the targets found touch the edge of a region (other than
+	 * the edge of the frame), in which case they were probably cut off.
+	 * @param results targets found, scaled to fractions of the frame
+	 */
+	protected boolean isClipped(List<PreciseRectangle> results) {
+		final double width = getFrameWidth(), height = getFrameHeight();
+		for (int i = 0; i < results.size(); i++) {
+			PreciseRectangle result = results.get(i);
+			// Bounds of the target's pixels (inclusive)
+			final int xMin = (int) Math.round(result.getX() * width);
+			final int yMin = (int) Math.round(result.getY() * height);
+			final int xMax = (int) Math.round((result.getX() + result.getWidth()) * width);
+			final int yMax = (int) Math.round((result.getY() + result.getHeight()) * height);
+			for (int j = 0; j < numRegions; j++) {
+				final int rxMin = regions[j * 4], ryMin = regions[j * 4 + 1], rxMax = regions[j * 4 + 2], ryMax = regions[j * 4 + 3];
+				if (xMin < rxMin || yMin < ryMin || xMax >= rxMax || yMax >= ryMax)
+					// Not in this region
+					continue;
+				if ((xMin == rxMin && rxMin > 0) || (yMin == ryMin && ryMin > 0)
+						|| (xMax == rxMax - 1 && rxMax < width) || (yMax == ryMax - 1 && ryMax < height))
+					return true;
+				break;
+			}
+		}
+		return false;
+	}
+
+	protected void addRegion(int xMin, int yMin, int xMax, int yMax) {
+		if (numRegions * 4 == regions.length) {
+			int[] tmp = new int[regions.length * 2];
+			System.arraycopy(regions, 0, tmp, 0, regions.length);
+			regions = tmp;
+		}
+		regions[numRegions * 4] = xMin;
+		regions[numRegions * 4 + 1] = yMin;
+		regions[numRegions * 4 + 2] = xMax;
+		regions[numRegions * 4 + 3] = yMax;
+		numRegions++;
+	}
+
+	/**
+	 * Match the targets found in this frame to the tracks, and update them.
+	 * <p>
+	 * Each track is matched to the unmatched target whose center is closest to
+	 * where the track was expected to be, as long as that center is inside the
+	 * track's predicted box, expanded by its margin (the same area as its
+	 * region of interest). A target further away than that isn't the same
+	 * one, even if it's the only one left. Targets that don't match a track
+	 * start new tracks.
+	 * </p>
+	 * @param results targets found, scaled to fractions of the frame
+	 * @param fullScan whether the whole frame was scanned. If not, a track
+	 *            without a match means that a target was lost.
+	 * @return false if a track wasn't matched on a partial scan, in which case
+	 *         the tracks are unchanged
+	 */
+	protected boolean updateTracks(List<PreciseRectangle> results, boolean fullScan) {
+		final double width = getFrameWidth(), height = getFrameHeight();
+		final int numResults = results.size();
+		// Bit i is set when result i has been matched
+		long matched = 0;
+		int numNext = 0;
+		for (int i = 0; i < numTracks; i++) {
+			final Track track = tracks[i];
+			final double expectedX = track.getCenterX() + track.vx;
+			final double expectedY = track.getCenterY() + track.vy;
+			// Furthest that a match's center can be from where it's expected
+			final double maxDx = (track.xMax - track.xMin) / 2 + track.getMarginX();
+			final double maxDy = (track.yMax - track.yMin) / 2 + track.getMarginY();
+			int best = -1;
+			double bestDistance = Double.POSITIVE_INFINITY;
+			for (int j = 0; j < numResults && j < 64; j++) {
+				if ((matched & (1L << j)) != 0)
+					continue;
+				PreciseRectangle result = results.get(j);
+				final double dx = (result.getX() + result.getWidth() / 2) * width - expectedX;
+				final double dy = (result.getY() + result.getHeight() / 2) * height - expectedY;
+				if (Math.abs(dx) > maxDx || Math.abs(dy) > maxDy)
+					continue;
+				final double distance = dx * dx + dy * dy;
+				if (distance < bestDistance) {
+					best = j;
+					bestDistance = distance;
+				}
+			}
+			if (best < 0) {
+				if (!fullScan)
+					return false;
+				// The target is gone
+				continue;
+			}
+			matched |= 1L << best;
+			final Track next = nextTrack(numNext++);
+			next.set(results.get(best), width, height);
+			next.vx = VELOCITY_GAIN * (next.getCenterX() - track.getCenterX()) + (1 - VELOCITY_GAIN) * track.vx;
+			next.vy = VELOCITY_GAIN * (next.getCenterY() - track.getCenterY()) + (1 - VELOCITY_GAIN) * track.vy;
+		}
+		// New targets
+		for (int j = 0; j < numResults && j < 64; j++) {
+			if ((matched & (1L << j)) != 0)
+				continue;
+			final Track next = nextTrack(numNext++);
+			next.set(results.get(j), width, height);
+			next.vx = 0;
+			next.vy = 0;
+		}
+		Track[] tmp = this.tracks;
+		this.tracks = this.nextTracks;
+		this.nextTracks = tmp;
+		this.numTracks = numNext;
+		return true;
+	}
+
+	protected Track nextTrack(int index) {
+		if (index >= nextTracks.length) {
+			Track[] tmp = new Track[nextTracks.length * 2];
+			System.arraycopy(nextTracks, 0, tmp, 0, nextTracks.length);
+			nextTracks = tmp;
+		}
+		Track track = nextTracks[index];
+		if (track == null)
+			nextTracks[index] = track = new Track();
+		return track;
+	}
+
+	/**
+	 * A target being tracked, in pixels
+	 */
+	protected static class Track {
+		protected double xMin, yMin, xMax, yMax;
+		/**
+		 * Velocity, in pixels per frame
+		 */
+		protected double vx, vy;
+
+		protected void set(PreciseRectangle rect, double width, double height) {
+			this.xMin = rect.getX() * width;
+			this.yMin = rect.getY() * height;
+			this.xMax = (rect.getX() + rect.getWidth()) * width;
+			this.yMax = (rect.getY() + rect.getHeight()) * height;
+		}
+
+		protected double getCenterX() {
+			return (xMin + xMax) / 2;
+		}
+
+		protected double getCenterY() {
+			return (yMin + yMax) / 2;
+		}
+
+		/**
+		 * @return how far to look for this target on either side of where
+		 *         it's expected to be, horizontally
+		 */
+		protected double getMarginX() {
+			return Math.max(MIN_MARGIN, (xMax - xMin) / 2);
+		}
+
+		/**
+		 * @return how far to look for this target above and below where it's
+		 *         expected to be
+		 */
+		protected double getMarginY() {
+			return Math.max(MIN_MARGIN, (yMax - yMin) / 2);
+		}
+	}
+}
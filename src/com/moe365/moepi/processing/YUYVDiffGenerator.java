@@ -0,0 +1,117 @@
+package com.moe365.moepi.processing;
+
+import java.nio.ByteBuffer;
+
+import au.edu.jcu.v4l4j.VideoFrame;
+
+/**
+ * A {@link DiffGenerator} that reads raw YUYV (YUV 4:2:2) frames straight
+ * from their buffers, so they never have to be encoded to or decoded from JPEG.
+ * <p>
+ * YUYV stores every two pixels in four bytes, <code>Y0 U Y1 V</code>, where
+ * both pixels share the U and V samples. The red and green components of each
+ * pixel are calculated with the JFIF (full range) YCbCr conversion, which is
+ * what we used to get when the frames were JPEG encoded by V4L4J and decoded
+ * by {@link VideoFrame#getBufferedImage()}, and then run through the normal
+ * {@linkplain #test(int, int) test}.
+ * </p>
+ * <p>
+ * Decoded {@link java.awt.image.BufferedImage BufferedImage}s (e.g., when
+ * running tests on images from disk) are still supported, through the
+ * superclass.
+ * </p>
+ * @author mailmindlin
+ */
+public class YUYVDiffGenerator extends DiffGenerator {
+	/**
+	 * Number of bytes in each row of a frame
+	 */
+	protected final int bytesPerLine;
+
+	/**
+	 * @param imageWidth width of the captured frames, in pixels
+	 */
+	public YUYVDiffGenerator(int frameMinX, int frameMinY, int frameMaxX, int frameMaxY, int tolerance, int imageWidth) {
+		super(frameMinX, frameMinY, frameMaxX, frameMaxY, tolerance);
+		this.bytesPerLine = imageWidth * 2;
+	}
+
+	@Override
+	public boolean isRaw() {
+		return true;
+	}
+
+	@Override
+	public <T extends MutableBinaryImage> T apply(VideoFrame frameOn, VideoFrame frameOff, T result) {
+		return apply(frameOn.getBuffer(), frameOff.getBuffer(), result);
+	}
+
+	/**
+	 * Diff two YUYV frames
+	 * @param on frame taken with the flash on. Only absolute gets are used, so
+	 *            its position isn't changed.
+	 * @param off frame taken with the flash off
+	 * @param result mask to overwrite
+	 * @return result
+	 */
+	public <T extends MutableBinaryImage> T apply(ByteBuffer on, ByteBuffer off, T result) {
+		diffRowsYUYV(on, off, result, 0, frameMaxX - frameMinX, frameMinY, frameMaxY);
+		return result;
+	}
+
+	@Override
+	public BitPackedBinaryImage applyRegion(VideoFrame frameOn, VideoFrame frameOff, BitPackedBinaryImage result, int xMin, int yMin, int xMax, int yMax) {
+		final int xStart = regionStart(xMin), xEnd = regionEnd(xMax);
+		yMin = Math.max(yMin, frameMinY);
+		yMax = Math.min(yMax, frameMaxY);
+		if (xStart < xEnd && yMin < yMax)
+			diffRowsYUYV(frameOn.getBuffer(), frameOff.getBuffer(), result, xStart, xEnd, yMin, yMax);
+		return result;
+	}
+
+	protected void diffRowsYUYV(ByteBuffer on, ByteBuffer off, MutableBinaryImage result, int xStart, int xEnd, int yMin, int yMax) {
+		final int onBase = on.position(), offBase = off.position();
+		for (int y = yMin; y < yMax; y++) {
+			final int idxY = y - frameMinY;
+			final int rowOffset = y * bytesPerLine;
+			long word = 0;
+			for (int x = xStart; x < xEnd; x++) {
+				final int imgX = x + frameMinX;
+				// Offset of the Y0 U Y1 V block that this pixel is in
+				final int block = rowOffset + (imgX & ~1) * 2;
+				final int luma = block + (imgX & 1) * 2;
+				final int red = pixelRed(on, onBase + luma, onBase + block) - pixelRed(off, offBase + luma, offBase + block);
+				final int green = pixelGreen(on, onBase + luma, onBase + block) - pixelGreen(off, offBase + luma, offBase + block);
+				if (test(red, green))
+					word |= 1L << x;
+				if ((x & 63) == 63) {
+					result.setWord(idxY, x >>> 6, word);
+					word = 0;
+				}
+			}
+			if ((xEnd & 63) != 0)
+				result.setWord(idxY, xEnd >>> 6, word);
+		}
+	}
+
+	/**
+	 * Red component of a pixel: <code>Y + 1.402 (V - 128)</code>
+	 * @param buf frame
+	 * @param luma index of the pixel's Y sample
+	 * @param block index of the start of the pixel's block
+	 */
+	protected static int pixelRed(ByteBuffer buf, int luma, int block) {
+		final int v = (buf.get(block + 3) & 0xFF) - 128;
+		return AbstractImageProcessor.saturateByte((buf.get(luma) & 0xFF) + ((359 * v) >> 8));
+	}
+
+	/**
+	 * Green component of a pixel: <code>Y - 0.344 (U - 128) - 0.714 (V - 128)</code>
+	 * @see #pixelRed(ByteBuffer, int, int)
+	 */
+	protected static int pixelGreen(ByteBuffer buf, int luma, int block) {
+		final int u = (buf.get(block + 1) & 0xFF) - 128;
+		final int v = (buf.get(block + 3) & 0xFF) - 128;
+		return AbstractImageProcessor.saturateByte((buf.get(luma) & 0xFF) - ((88 * u + 183 * v) >> 8));
+	}
+}
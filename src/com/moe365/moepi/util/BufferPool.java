@@ -0,0 +1,124 @@
+package com.moe365.moepi.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of reference-counted buffers, for data that's written once and then
+ * read by several consumers at their own pace (like a frame being sent to
+ * every client), so that it doesn't have to be copied for each of them, or
+ * allocated again for the next one.
+ * <p>
+ * Buffers that are too small for what's asked for are dropped, and a bigger
+ * one allocated, so after a few uses the pool holds buffers big enough for
+ * anything, and stops allocating. Acquiring and releasing buffers is
+ * lock-free.
+ * </p>
+ * <p>
+ * Buffers are direct, so that they can be written to a channel as-is. Heap
+ * buffers would be copied into a temporary direct buffer on every write,
+ * which is the copy per consumer that this is supposed to get rid of.
+ * </p>
+ * @author mailmindlin
+ */
+public class BufferPool {
+	/**
+	 * Default number of idle buffers to keep
+	 */
+	public static final int DEFAULT_MAX_IDLE = 4;
+
+	protected final ConcurrentLinkedQueue<PooledBuffer> idle = new ConcurrentLinkedQueue<>();
+	protected final AtomicInteger numIdle = new AtomicInteger();
+	protected final int maxIdle;
+	protected final AtomicInteger allocations = new AtomicInteger();
+
+	public BufferPool() {
+		this(DEFAULT_MAX_IDLE);
+	}
+
+	/**
+	 * @param maxIdle most buffers to keep around while they aren't being
+	 *            used. Any more are left to be garbage collected.
+	 */
+	public BufferPool(int maxIdle) {
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * Get a cleared buffer, with a reference count of 1.
+	 * @param capacity minimum capacity of the buffer
+	 * @return buffer, which must be {@linkplain PooledBuffer#release() released}
+	 *         when it's done with
+	 */
+	public PooledBuffer acquire(int capacity) {
+		PooledBuffer result = idle.poll();
+		if (result != null)
+			numIdle.decrementAndGet();
+		if (result == null || result.buffer.capacity() < capacity) {
+			// Leave some headroom, so the next one that's a bit bigger fits
+			result = new PooledBuffer(ByteBuffer.allocateDirect(capacity + capacity / 4));
+			allocations.incrementAndGet();
+		}
+		result.refs.set(1);
+		result.buffer.clear();
+		return result;
+	}
+
+	protected void recycle(PooledBuffer buffer) {
+		if (numIdle.incrementAndGet() > maxIdle) {
+			numIdle.decrementAndGet();
+			return;
+		}
+		idle.offer(buffer);
+	}
+
+	/**
+	 * @return the number of buffers that this pool has allocated
+	 */
+	public int getAllocations() {
+		return allocations.get();
+	}
+
+	/**
+	 * A buffer from a {@link BufferPool}, which goes back to the pool when
+	 * everyone using it has released it.
+	 */
+	public class PooledBuffer {
+		protected final ByteBuffer buffer;
+		protected final AtomicInteger refs = new AtomicInteger();
+
+		protected PooledBuffer(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		/**
+		 * @return the underlying buffer. Don't hold on to it after releasing.
+		 */
+		public ByteBuffer buffer() {
+			return this.buffer;
+		}
+
+		/**
+		 * Add a reference to this buffer
+		 * @return self
+		 */
+		public PooledBuffer retain() {
+			if (refs.getAndIncrement() <= 0)
+				throw new IllegalStateException("Buffer was already released");
+			return this;
+		}
+
+		/**
+		 * Remove a reference to this buffer, returning it to the pool if it
+		 * was the last one
+		 */
+		public void release() {
+			final int remaining = refs.decrementAndGet();
+			if (remaining == 0)
+				recycle(this);
+			else if (remaining < 0)
+				throw new IllegalStateException("Buffer was released too many times");
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package com.moe365.moepi.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded single-producer/single-consumer queue that, when full, makes room
+ * by evicting the oldest element, instead of blocking the producer or
+ * rejecting the new element.
+ * <p>
+ * The producer and consumer race for the head of the queue with a CAS, so
+ * exactly one of them ends up with each element: either the consumer takes it,
+ * or {@link #offer(Object)} returns it as evicted. That way, whatever the
+ * elements hold (pooled buffers, camera frames) can always be released by
+ * whoever ends up with it.
+ * </p>
+ * <p>
+ * Neither {@link #offer(Object)} nor {@link #take()} allocate.
+ * </p>
+ * @author mailmindlin
+ * @param <E> element type
+ */
+public class LatestWinsRingBuffer<E> {
+	protected final AtomicReferenceArray<E> elements;
+	protected final int capacity;
+	protected final int mask;
+	/**
+	 * Index of the next element to be consumed
+	 */
+	protected final AtomicLong head = new AtomicLong();
+	/**
+	 * Index of the next element to be written. Only written by the producer.
+	 */
+	protected volatile long tail = 0;
+	/**
+	 * The consumer, if it's parked waiting for an element
+	 */
+	protected volatile Thread waiter;
+
+	/**
+	 * @param capacity maximum number of elements, rounded up to a power of 2
+	 */
+	public LatestWinsRingBuffer(int capacity) {
+		if (capacity < 1 || capacity > (1 << 30))
+			throw new IllegalArgumentException("Invalid capacity (expect: 0 < capacity <= 2^30; capacity = " + capacity + ")");
+		capacity = Integer.highestOneBit(capacity - 1) << 1;
+		if (capacity == 0)
+			capacity = 1;
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+		this.elements = new AtomicReferenceArray<>(capacity);
+	}
+
+	/**
+	 * @return the maximum number of elements this buffer holds
+	 */
+	public int capacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * Add an element to the tail of the queue. May only be called from the
+	 * producer thread.
+	 * @param element element to add. May not be null.
+	 * @return the element that was evicted to make room for the new one, or
+	 *         null if there was room
+	 */
+	public E offer(E element) {
+		if (element == null)
+			throw new NullPointerException();
+		final long t = this.tail;
+		E evicted = null;
+		long h;
+		while (t - (h = head.get()) >= capacity) {
+			// While head == h, the consumer can't change elements[h]
+			E oldest = elements.get((int) h & mask);
+			if (head.compareAndSet(h, h + 1)) {
+				evicted = oldest;
+				break;
+			}
+		}
+		elements.set((int) t & mask, element);
+		this.tail = t + 1;
+		Thread waiter = this.waiter;
+		if (waiter != null)
+			LockSupport.unpark(waiter);
+		return evicted;
+	}
+
+	/**
+	 * Take the element at the head of the queue, if any. May only be called
+	 * from the consumer thread.
+	 * @return the oldest element, or null if the queue is empty
+	 */
+	public E poll() {
+		long h;
+		E element;
+		do {
+			h = head.get();
+			if (h >= this.tail)
+				return null;
+			element = elements.get((int) h & mask);
+		} while (!head.compareAndSet(h, h + 1));
+		return element;
+	}
+
+	/**
+	 * Take the element at the head of the queue, waiting for one if the
+	 * queue is empty. May only be called from the consumer thread.
+	 * @return the oldest element
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public E take() throws InterruptedException {
+		E element = poll();
+		if (element != null)
+			return element;
+		this.waiter = Thread.currentThread();
+		try {
+			while ((element = poll()) == null) {
+				if (Thread.interrupted())
+					throw new InterruptedException();
+				LockSupport.park(this);
+			}
+		} finally {
+			this.waiter = null;
+		}
+		return element;
+	}
+
+	/**
+	 * Take the element at the head of the queue, waiting up to the given time
+	 * for one if the queue is empty. May only be called from the consumer thread.
+	 * @return the oldest element, or null if the timeout elapsed
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		E element = poll();
+		if (element != null)
+			return element;
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		this.waiter = Thread.currentThread();
+		try {
+			while ((element = poll()) == null) {
+				if (Thread.interrupted())
+					throw new InterruptedException();
+				final long remaining = deadline - System.nanoTime();
+				if (remaining <= 0)
+					return null;
+				LockSupport.parkNanos(this, remaining);
+			}
+		} finally {
+			this.waiter = null;
+		}
+		return element;
+	}
+
+	/**
+	 * @return the number of elements in the queue. May be stale by the time
+	 *         it's returned.
+	 */
+	public int size() {
+		return (int) Math.max(0, this.tail - head.get());
+	}
+}